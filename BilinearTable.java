@@ -0,0 +1,182 @@
+/**
+ * <p>Table of bilinear approximations (BLAs) over a reference orbit, for skipping
+ * runs of perturbation iterations.</p>
+ *
+ * <p>While the delta d is small enough that d^2 can be ignored next to 2 * Z * d, one
+ * iteration is the linear map</p>
+ *
+ * <p> d(n+1) = A * d(n) + B * dc,   A = 2 * Z(n), B = 1 </p>
+ *
+ * <p>which is good as long as |d| &lt; R = EPSILON * |A|. Two maps in a row combine
+ * into one:</p>
+ *
+ * <p> A = Ay * Ax, B = Ay * Bx + By, R = min(Rx, (Ry - |Bx| * |dc|) / |Ax|) </p>
+ *
+ * <p>where |dc| is the largest dc in the view. Level 0 of the table holds the map for
+ * each single iteration from 1 on; level k holds maps of 2^k iterations, starting at
+ * iterations 1, 1 + 2^k, 1 + 2 * 2^k, and so on, each made from two maps of level
+ * k - 1. A point at reference iteration n uses the longest map that starts at n and
+ * whose R is bigger than its delta.</p>
+ *
+ * <p>The table is built once per reference orbit and view, and never changed after
+ * that, so it is shared by all the render threads.</p>
+ */
+class BilinearTable {
+   static final double EPSILON = 0x1p-53;
+
+   private static final int CANCEL_CHECK = 4096;   // Maps built between cancel checks
+
+   private final double[][] ars;   // A, real parts, by level and start
+   private final double[][] ais;   // A, imaginary parts
+   private final double[][] brs;   // B, real parts
+   private final double[][] bis;   // B, imaginary parts
+   private final double[][] r2s;   // R squared
+
+   //------------------------------------------------------------------------------------
+   // Constructors
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Build the table for the given reference orbit (orbitLength + 1 points, starting
+    * at Z(0) = 0), where dc is at most maxDc. If the given token (which may be null)
+    * is cancelled, the table is left unfinished, and must not be used.
+    */
+   BilinearTable(
+      double[] zrs, double[] zis, int orbitLength, double maxDc,
+      TileRenderer.CancelToken cancelToken)
+   {
+      int count = Math.max(orbitLength - 1, 0);   // Single steps from 1 on
+      int levels = 1;
+
+      while ((1 << levels) <= count) {
+         levels ++;
+      }
+
+      ars = new double[levels][];
+      ais = new double[levels][];
+      brs = new double[levels][];
+      bis = new double[levels][];
+      r2s = new double[levels][];
+
+      // Level 0: single iterations.
+
+      newLevel(0, count);
+
+      for (int m = 0; m < count; m ++) {
+         if (m % CANCEL_CHECK == 0 && cancelToken != null && cancelToken.isCancelled()) {
+            return;
+         }
+
+         double zr = zrs[m + 1];
+         double zi = zis[m + 1];
+         double r = EPSILON * 2.0 * Math.sqrt((zr * zr) + (zi * zi));
+
+         ars[0][m] = 2.0 * zr;
+         ais[0][m] = 2.0 * zi;
+         brs[0][m] = 1.0;
+         bis[0][m] = 0.0;
+         r2s[0][m] = r * r;
+      }
+
+      // Higher levels: pairs of maps from the level below. The first map (x) is
+      // applied first, then the second (y).
+
+      for (int k = 1; k < levels; k ++) {
+         int size = ars[k - 1].length / 2;
+
+         newLevel(k, size);
+
+         for (int m = 0; m < size; m ++) {
+            if (m % CANCEL_CHECK == 0 && cancelToken != null && cancelToken.isCancelled()) {
+               return;
+            }
+
+            int    x = 2 * m;
+            int    y = x + 1;
+            double axr = ars[k - 1][x], axi = ais[k - 1][x];
+            double bxr = brs[k - 1][x], bxi = bis[k - 1][x];
+            double ayr = ars[k - 1][y], ayi = ais[k - 1][y];
+            double byr = brs[k - 1][y], byi = bis[k - 1][y];
+            double ax = Math.sqrt((axr * axr) + (axi * axi));
+            double bx = Math.sqrt((bxr * bxr) + (bxi * bxi));
+            double r = (Math.sqrt(r2s[k - 1][y]) - (bx * maxDc)) / ax;
+
+            // A = Ay * Ax, B = Ay * Bx + By
+
+            ars[k][m] = (ayr * axr) - (ayi * axi);
+            ais[k][m] = (ayr * axi) + (ayi * axr);
+            brs[k][m] = (ayr * bxr) - (ayi * bxi) + byr;
+            bis[k][m] = (ayr * bxi) + (ayi * bxr) + byi;
+
+            // R = min(Rx, max(0, r)); an overflowed r counts as 0.
+
+            r = (r > 0.0 ? r : 0.0);
+            r2s[k][m] = Math.min(r2s[k - 1][x], r * r);
+         }
+      }
+   }
+
+   private void newLevel(int k, int size) {
+      ars[k] = new double[size];
+      ais[k] = new double[size];
+      brs[k] = new double[size];
+      bis[k] = new double[size];
+      r2s[k] = new double[size];
+   }
+
+   //------------------------------------------------------------------------------------
+   // Lookup
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Get the number of levels.
+    */
+   int getLevels() {
+      return ars.length;
+   }
+
+   /**
+    * Find the longest map that starts at reference iteration n, is no longer than
+    * limit iterations, and is good for a delta whose size squared is d2. Returns the
+    * level, or -1 if there is none.
+    */
+   int find(int n, double d2, int limit) {
+      if (n < 1) {
+         return -1;
+      }
+
+      int m = n - 1;
+
+      for (int k = ars.length - 1; k >= 0; k --) {
+         if ((m & ((1 << k) - 1)) == 0 && (1 << k) <= limit) {
+            int j = m >> k;
+
+            if (j < ars[k].length && d2 < r2s[k][j]) {
+               return k;
+            }
+         }
+      }
+
+      return -1;
+   }
+
+   /**
+    * Get A, real part, of the map at the given level that starts at reference
+    * iteration n.
+    */
+   double ar(int k, int n) {
+      return ars[k][(n - 1) >> k];
+   }
+
+   double ai(int k, int n) {
+      return ais[k][(n - 1) >> k];
+   }
+
+   double br(int k, int n) {
+      return brs[k][(n - 1) >> k];
+   }
+
+   double bi(int k, int n) {
+      return bis[k][(n - 1) >> k];
+   }
+}
@@ -0,0 +1,169 @@
+/**
+ * <p>Boundary tracing engine. Only the edges of each band of equal depth are
+ * calculated, and the inside of each band is then filled, so a band costs points in
+ * proportion to its perimeter instead of its area.</p>
+ *
+ * <p>Every point on the border of a tile is put in a queue. As each point is taken
+ * from the queue, it and its four direct neighbors are calculated. Each neighbor with
+ * a different depth lies across a band edge, so it is queued, along with the diagonal
+ * neighbors next to it. When the queue is empty, every band edge in the tile has been
+ * traced, and each row is filled from left to right, copying the depth of the point
+ * to the left into each point that was not calculated.</p>
+ */
+class BoundaryTracer {
+   private static final byte CALCULATED = 1;
+   private static final byte QUEUED = 2;
+
+   private TileRenderer    renderer;
+   private IterationBuffer depths;
+   private int             width;
+
+   //------------------------------------------------------------------------------------
+   // Constructors
+   //------------------------------------------------------------------------------------
+
+   BoundaryTracer(TileRenderer renderer, IterationBuffer depths) {
+      this.renderer = renderer;
+      this.depths = depths;
+      this.width = depths.getWidth();
+   }
+
+   //------------------------------------------------------------------------------------
+   // Rendering
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Render the given tile (right and bottom exclusive).
+    */
+   void renderTile(int left, int top, int right, int bottom) {
+      new Trace(left, top, right - left, bottom - top).run();
+   }
+
+   /**
+    * The state of the trace of one tile. Points are numbered row by row within the
+    * tile.
+    */
+   private class Trace {
+      private int    left;
+      private int    top;
+      private int    w;
+      private int    h;
+      private int[]  tileDepths;
+      private byte[] flags;
+      private int[]  queue;       // Each point is queued at most once
+      private int    queueEnd;
+
+      Trace(int left, int top, int w, int h) {
+         this.left = left;
+         this.top = top;
+         this.w = w;
+         this.h = h;
+         tileDepths = new int[w * h];
+         flags = new byte[w * h];
+         queue = new int[w * h];
+      }
+
+      void run() {
+         // Queue the border.
+
+         for (int x = 0; x < w; x ++) {
+            add(x);
+            add(((h - 1) * w) + x);
+         }
+
+         for (int y = 1; y < h - 1; y ++) {
+            add(y * w);
+            add((y * w) + w - 1);
+         }
+
+         // Trace the band edges.
+
+         for (int q = 0; q < queueEnd; q ++) {
+            scan(queue[q]);
+         }
+
+         // Fill the bands and copy the tile into the iteration buffer.
+
+         for (int y = 0; y < h; y ++) {
+            int p = y * w;
+            int i = ((top + y) * width) + left;
+
+            for (int x = 0; x < w; x ++, p ++, i ++) {
+               if (flags[p] == 0) {
+                  tileDepths[p] = tileDepths[p - 1];
+               }
+
+               depths.set(i, tileDepths[p]);
+            }
+         }
+      }
+
+      /**
+       * Calculate the given point and its neighbors, and queue the neighbors that lie
+       * across a band edge.
+       */
+      private void scan(int p) {
+         int     x = p % w;
+         int     y = p / w;
+         int     d = calculate(p);
+         boolean l = x > 0 && calculate(p - 1) != d;
+         boolean r = x < w - 1 && calculate(p + 1) != d;
+         boolean u = y > 0 && calculate(p - w) != d;
+         boolean b = y < h - 1 && calculate(p + w) != d;
+
+         if (l) {
+            add(p - 1);
+         }
+
+         if (r) {
+            add(p + 1);
+         }
+
+         if (u) {
+            add(p - w);
+         }
+
+         if (b) {
+            add(p + w);
+         }
+
+         if ((l || u) && x > 0 && y > 0) {
+            add(p - w - 1);
+         }
+
+         if ((r || u) && x < w - 1 && y > 0) {
+            add(p - w + 1);
+         }
+
+         if ((l || b) && x > 0 && y < h - 1) {
+            add(p + w - 1);
+         }
+
+         if ((r || b) && x < w - 1 && y < h - 1) {
+            add(p + w + 1);
+         }
+      }
+
+      /**
+       * Return the depth of the given point, calculating it if necessary.
+       */
+      private int calculate(int p) {
+         if ((flags[p] & CALCULATED) == 0) {
+            tileDepths[p] = renderer.depthAt(left + (p % w), top + (p / w));
+            flags[p] |= CALCULATED;
+         }
+
+         return tileDepths[p];
+      }
+
+      /**
+       * Queue the given point, unless it has been queued already.
+       */
+      private void add(int p) {
+         if ((flags[p] & QUEUED) == 0) {
+            flags[p] |= QUEUED;
+            queue[queueEnd ++] = p;
+         }
+      }
+   }
+}
@@ -0,0 +1,59 @@
+/**
+ * <p>The color maps: 256 shades of one color, repeating every 16 depths. They are
+ * worked out in plain integer RGB, without java.awt.Color, so that the batch
+ * renderer can color images without loading AWT (see MandelBatch). The shades are
+ * the same as java.awt.Color.brighter gives.</p>
+ */
+public class ColorMap {
+   public static final String[] NAMES =
+      {"blue", "red", "green", "gray", "violet", "yellow", "cyan"};
+   private static final int[] MASKS =
+      {0x0000ff, 0xff0000, 0x00ff00, 0xffffff, 0xff00ff, 0xffff00, 0x00ffff};
+
+   private static final double FACTOR = 0.7;   // Same as java.awt.Color
+
+   /**
+    * Create the color map with the given name, or the first one if there is no such
+    * name. Each entry is an opaque RGB value.
+    */
+   public static int[] create(String name) {
+      int   mask = MASKS[Math.max(java.util.Arrays.asList(NAMES).indexOf(name), 0)];
+      int[] colorMap = new int[256];
+
+      for (int i = 0; i < 256; i ++) {
+         int j = (i * 16) % 256;
+         colorMap[i] = brighter((j * 0x010101) & mask);
+      }
+
+      return colorMap;
+   }
+
+   /**
+    * Return a brighter version of the given RGB color, as java.awt.Color.brighter
+    * does.
+    */
+   private static int brighter(int rgb) {
+      int r = (rgb >> 16) & 0xff;
+      int g = (rgb >> 8) & 0xff;
+      int b = rgb & 0xff;
+      int i = (int) (1.0 / (1.0 - FACTOR));
+
+      if (r == 0 && g == 0 && b == 0) {
+         r = g = b = i;
+      } else {
+         r = brighter(r, i);
+         g = brighter(g, i);
+         b = brighter(b, i);
+      }
+
+      return 0xff000000 | (r << 16) | (g << 8) | b;
+   }
+
+   private static int brighter(int c, int i) {
+      if (c > 0 && c < i) {
+         c = i;
+      }
+
+      return Math.min((int) (c / FACTOR), 255);
+   }
+}
@@ -0,0 +1,337 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * <p>Keeps rendered tiles in a directory on disk, so that they outlast the process.
+ * It sits behind the memory cache (see TileCache), which asks it for the tiles it
+ * doesn't have and hands it the tiles it is given.</p>
+ *
+ * <p>Each tile is a file whose name is the SHA-1 hash of its key, in a directory named
+ * by the first two digits of the hash, so finding a tile takes one lookup whatever
+ * the number of tiles. The file holds a header (MAGIC, the key, the size, and the
+ * maximum depth) and then the depths, deflated, as 1, 2 or 4 bytes each, as in the
+ * iteration buffer. Files are read whole through a file channel, and written to a
+ * temporary file first and then renamed, so a tile is never seen half written. The
+ * key, size and maximum depth in the header are checked against the key on
+ * reading.</p>
+ *
+ * <p>The files are kept up to a budget in bytes. The index of files, with their
+ * sizes, is kept in memory in order of use and built from the directory when the
+ * cache is opened, oldest first by modification time; a file's time is set when it
+ * is read, so the order lasts from one run to the next. The least recently used
+ * files are deleted to make room.</p>
+ */
+public class DiskTileCache {
+   private static final int    MAGIC = 0x4d545443;   // "MTTC"
+   private static final String SUFFIX = ".tile";
+   private static final String TEMP_PREFIX = "tile";   // Files being written
+   private static final String TEMP_SUFFIX = ".tmp";
+
+   private File                        directory;
+   private long                        budget;   // Bytes of files to keep
+   private long                        bytes;    // Bytes of files kept
+   private LinkedHashMap<String, Long> files =
+      new LinkedHashMap<String, Long>(256, 0.75f, true);   // Size of each, in use order
+
+   //------------------------------------------------------------------------------------
+   // Constructors
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Open the cache in the given directory, creating it if necessary, and keep up to
+    * the given number of bytes of files in it.
+    */
+   public DiskTileCache(File directory, long budget) throws IOException {
+      this.directory = directory;
+      this.budget = budget;
+
+      if (! directory.isDirectory() && ! directory.mkdirs()) {
+         throw new IOException("Can't create " + directory + ".");
+      }
+
+      // Index the tiles that are there, oldest first, and delete temporary files
+      // left over from runs that stopped while writing. Only the cache's own
+      // directories (named by two hex digits) are looked in, and only its own files
+      // are touched, in case the directory is shared.
+
+      ArrayList<File> found = new ArrayList<File>();
+      File[]          dirs = directory.listFiles();
+
+      for (int d = 0; d < dirs.length; d ++) {
+         if (! dirs[d].isDirectory() || ! dirs[d].getName().matches("[0-9a-f]{2}")) {
+            continue;
+         }
+
+         File[] list = dirs[d].listFiles();
+
+         for (int f = 0; f < list.length; f ++) {
+            String name = list[f].getName();
+
+            if (name.endsWith(SUFFIX)) {
+               found.add(list[f]);
+            } else if (name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX)) {
+               list[f].delete();
+            }
+         }
+      }
+
+      Collections.sort(found, new Comparator<File>() {
+         public int compare(File a, File b) {
+            return Long.compare(a.lastModified(), b.lastModified());
+         }
+      });
+
+      for (int f = 0; f < found.size(); f ++) {
+         File file = found.get(f);
+
+         files.put(file.getParentFile().getName() + "/" + file.getName(), file.length());
+         bytes += file.length();
+      }
+
+      evict();
+   }
+
+   //------------------------------------------------------------------------------------
+   // Caching
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Read the tile with the given key, or return null if there is none (or it can't
+    * be read).
+    */
+   public IterationBuffer get(TileCache.Key key) {
+      String name = fileName(key);
+
+      synchronized (this) {
+         if (files.get(name) == null) {
+            return null;
+         }
+      }
+
+      File file = new File(directory, name);
+
+      try {
+         IterationBuffer tile = read(file, key);
+
+         file.setLastModified(System.currentTimeMillis());
+         return tile;
+      } catch(IOException ex) {
+         remove(name);
+         return null;
+      }
+   }
+
+   /**
+    * Write the given tile under the given key, deleting the least recently used
+    * files if the budget is exceeded.
+    */
+   public void put(TileCache.Key key, IterationBuffer tile) {
+      String name = fileName(key);
+      File   file = new File(directory, name);
+
+      try {
+         file.getParentFile().mkdirs();
+
+         File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, file.getParentFile());
+
+         try {
+            write(temp, key, tile);
+            Files.move(
+               temp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         } finally {
+            temp.delete();
+         }
+      } catch(IOException ex) {
+         System.out.println(ex);
+         return;
+      }
+
+      synchronized (this) {
+         Long old = files.put(name, file.length());
+
+         bytes += file.length() - (old != null ? old.longValue() : 0);
+         evict();
+      }
+   }
+
+   public synchronized long getBytes() {
+      return bytes;
+   }
+
+   public synchronized int getTiles() {
+      return files.size();
+   }
+
+   /**
+    * Delete the least recently used files until the budget is met.
+    */
+   private synchronized void evict() {
+      Iterator<Map.Entry<String, Long>> i = files.entrySet().iterator();
+
+      while (bytes > budget && i.hasNext()) {
+         Map.Entry<String, Long> entry = i.next();
+
+         new File(directory, entry.getKey()).delete();
+         bytes -= entry.getValue().longValue();
+         i.remove();
+      }
+   }
+
+   /**
+    * Forget and delete the given file.
+    */
+   private synchronized void remove(String name) {
+      Long size = files.remove(name);
+
+      if (size != null) {
+         bytes -= size.longValue();
+      }
+
+      new File(directory, name).delete();
+   }
+
+   //------------------------------------------------------------------------------------
+   // File format
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Return the name of the file of the given key, relative to the directory.
+    */
+   private static String fileName(TileCache.Key key) {
+      try {
+         byte[]       hash = MessageDigest.getInstance("SHA-1").digest(
+            key.toString().getBytes("UTF-8"));
+         StringBuffer name = new StringBuffer();
+
+         for (int i = 0; i < hash.length; i ++) {
+            name.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+            name.append(Character.forDigit(hash[i] & 0xf, 16));
+
+            if (i == 0) {
+               name.append('/');
+            }
+         }
+
+         return name.append(SUFFIX).toString();
+      } catch(Exception ex) {
+         throw new RuntimeException(ex);   // SHA-1 and UTF-8 are always there
+      }
+   }
+
+   /**
+    * Write the given tile, with its key, to the given file.
+    */
+   private static void write(File file, TileCache.Key key, IterationBuffer tile)
+      throws IOException
+   {
+      int    count = tile.getWidth() * tile.getHeight();
+      int    size = (int) (TileCache.sizeOf(tile) / count);
+      byte[] raw = new byte[count * size];
+
+      for (int i = 0, j = 0; i < count; i ++) {
+         int d = tile.get(i);
+
+         for (int b = size - 1; b >= 0; b --) {
+            raw[j ++] = (byte) (d >>> (b * 8));
+         }
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length / 4);
+      DataOutputStream      out = new DataOutputStream(bytes);
+      Deflater              deflater = new Deflater();
+
+      out.writeInt(MAGIC);
+      out.writeUTF(key.toString());
+      out.writeInt(tile.getWidth());
+      out.writeInt(tile.getHeight());
+      out.writeInt(tile.getMaxDepth());
+
+      try {
+         DeflaterOutputStream data = new DeflaterOutputStream(out, deflater);
+
+         data.write(raw);
+         data.finish();
+      } finally {
+         deflater.end();
+      }
+
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+
+      try {
+         ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+         while (buffer.hasRemaining()) {
+            channel.write(buffer);
+         }
+      } finally {
+         channel.close();
+      }
+   }
+
+   /**
+    * Read the tile in the given file, which must have the given key, and the size and
+    * maximum depth the key gives.
+    */
+   private static IterationBuffer read(File file, TileCache.Key key) throws IOException {
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      ByteBuffer  buffer;
+
+      try {
+         buffer = ByteBuffer.allocate((int) channel.size());
+
+         while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+               throw new EOFException(file.toString());
+            }
+         }
+      } finally {
+         channel.close();
+      }
+
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+
+      if (in.readInt() != MAGIC || ! in.readUTF().equals(key.toString())) {
+         throw new IOException(file + " is not the tile " + key + ".");
+      }
+
+      int width = in.readInt();
+      int height = in.readInt();
+      int maxDepth = in.readInt();
+
+      if (width != key.getSize() || height != key.getSize()
+         || maxDepth != key.getMaxDepth())
+      {
+         throw new IOException(file + " is not the size of the tile " + key + ".");
+      }
+
+      IterationBuffer tile = IterationBuffer.create(width, height, maxDepth);
+      int             count = tile.getWidth() * tile.getHeight();
+      int             size = (int) (TileCache.sizeOf(tile) / count);
+      byte[]          raw = new byte[count * size];
+      Inflater        inflater = new Inflater();
+
+      try {
+         new DataInputStream(new InflaterInputStream(in, inflater)).readFully(raw);
+      } finally {
+         inflater.end();
+      }
+
+      for (int i = 0, j = 0; i < count; i ++) {
+         int d = 0;
+
+         for (int b = 0; b < size; b ++) {
+            d = (d << 8) | (raw[j ++] & 0xff);
+         }
+
+         tile.set(i, d);
+      }
+
+      return tile;
+   }
+}
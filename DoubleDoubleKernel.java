@@ -0,0 +1,196 @@
+import java.math.*;
+
+/**
+ * <p>Escape-time kernel in double-double arithmetic, for zooms a little too deep for
+ * doubles. Each number is kept as the unevaluated sum of two doubles, high and low,
+ * where the low part holds the bits that don't fit in the high part, for about 32
+ * digits in all. That is enough to tell points apart down to a spacing of about
+ * 1e-28 of the size of the coordinates, and it is much faster than BigDecimal.</p>
+ *
+ * <p>Products are split exactly with fused multiply-add (the rounding error of a * b
+ * is fma(a, b, -(a * b))), and sums with Knuth's two-sum, so there is no rounding
+ * beyond the last bits of the low part. The real and imaginary parts of each point
+ * are worked out in double-double from the precise bounds, so neighboring points stay
+ * apart too. Escape is checked on the high parts alone, which is plenty for
+ * comparing with 4.</p>
+ *
+ * <p>Points are not tested against the cardioid and bulb, since near their edges,
+ * where views this deep are, the tests would have to be done in double-double too.
+ * Orbits are not checked for cycles either: two orbit points whose high parts match
+ * can still differ in their low parts.</p>
+ */
+public class DoubleDoubleKernel extends Kernel {
+   private double arHigh;   // Top-left, real part
+   private double arLow;
+   private double aiHigh;   // Top-left, imaginary part
+   private double aiLow;
+   private double dxHigh;   // Distance between columns
+   private double dxLow;
+   private double dyHigh;   // Distance between rows
+   private double dyLow;
+
+   public String getName() {
+      return "doubledouble";
+   }
+
+   /**
+    * Set the view, and split the top-left corner and the distance between points
+    * into double-doubles.
+    */
+   public void setView(
+      BigDecimal ar, BigDecimal ai, BigDecimal br, BigDecimal bi,
+      int imageWidth, int imageHeight, int maxDepth)
+   {
+      super.setView(ar, ai, br, bi, imageWidth, imageHeight, maxDepth);
+
+      MathContext mc = mathContext(ar, br, imageWidth);
+      BigDecimal  dx = br.subtract(ar).divide(BigDecimal.valueOf(imageWidth), mc);
+      BigDecimal  dy = bi.subtract(ai).divide(BigDecimal.valueOf(imageHeight), mc);
+
+      arHigh = ar.doubleValue();
+      arLow = ar.subtract(new BigDecimal(arHigh)).doubleValue();
+      aiHigh = ai.doubleValue();
+      aiLow = ai.subtract(new BigDecimal(aiHigh)).doubleValue();
+      dxHigh = dx.doubleValue();
+      dxLow = dx.subtract(new BigDecimal(dxHigh)).doubleValue();
+      dyHigh = dy.doubleValue();
+      dyLow = dy.subtract(new BigDecimal(dyHigh)).doubleValue();
+   }
+
+   //------------------------------------------------------------------------------------
+   // Calculation
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Calculate the depth of the point at the given cartesian coordinates.
+    */
+   public int depth(int x, int y) {
+      // As addProduct, but kept in locals, since the engines that ask for single
+      // points ask for a great many of them.
+
+      double ph = x * dxHigh;
+      double pl = Math.fma(x, dxHigh, -ph) + (x * dxLow);
+      double s = arHigh + ph;
+      double v = s - arHigh;
+      double e = ((arHigh - (s - v)) + (ph - v)) + (arLow + pl);
+      double crh = s + e;
+      double crl = e - (crh - s);
+
+      ph = y * dyHigh;
+      pl = Math.fma(y, dyHigh, -ph) + (y * dyLow);
+      s = aiHigh + ph;
+      v = s - aiHigh;
+      e = ((aiHigh - (s - v)) + (ph - v)) + (aiLow + pl);
+
+      double cih = s + e;
+      double cil = e - (cih - s);
+
+      return depth(crh, crl, cih, cil);
+   }
+
+   /**
+    * Calculate the depths of a row, working out the imaginary part only once.
+    */
+   public void row(int y, int left, int right, int step, IterationBuffer depths) {
+      double[] cr = new double[2];
+      double[] ci = new double[2];
+      int      i = (y * imageWidth) + left;
+
+      imaginaryPart(y, ci);
+
+      for (int x = left; x < right; x += step, i += step) {
+         realPart(x, cr);
+         depths.set(i, depth(cr[0], cr[1], ci[0], ci[1]));
+      }
+   }
+
+   /**
+    * Iterate the Mandelbrot equation for the given point, whose real and imaginary
+    * parts are double-doubles (high and low), and return its depth.
+    */
+   protected int depth(double crh, double crl, double cih, double cil) {
+      double zrh = 0.0, zrl = 0.0;   // z, real part
+      double zih = 0.0, zil = 0.0;   // z, imaginary part
+      double xh, xl;                 // zr^2
+      double yh, yl;                 // zi^2
+      double th, tl;                 // 2 * zr * zi
+      double s, v, e;
+      int    d;
+
+      for (d = 0; d < maxDepth; d ++) {
+         // Products, with the rounding error of the high parts kept in the low
+         // parts. The low * low terms are too small to matter.
+
+         xh = zrh * zrh;
+         xl = Math.fma(zrh, zrh, -xh) + (2.0 * zrh * zrl);
+         yh = zih * zih;
+         yl = Math.fma(zih, zih, -yh) + (2.0 * zih * zil);
+         th = 2.0 * zrh * zih;
+         tl = Math.fma(2.0 * zrh, zih, -th) + (2.0 * ((zrh * zil) + (zrl * zih)));
+
+         // zr = (x - y) + cr
+
+         s = xh - yh;
+         v = s - xh;
+         e = ((xh - (s - v)) + (-yh - v)) + (xl - yl);
+         xh = s + e;
+         xl = e - (xh - s);
+
+         s = xh + crh;
+         v = s - xh;
+         e = ((xh - (s - v)) + (crh - v)) + (xl + crl);
+         zrh = s + e;
+         zrl = e - (zrh - s);
+
+         // zi = t + ci
+
+         s = th + cih;
+         v = s - th;
+         e = ((th - (s - v)) + (cih - v)) + (tl + cil);
+         zih = s + e;
+         zil = e - (zih - s);
+
+         if (((zrh * zrh) + (zih * zih)) > 4.0) {
+            return d;
+         }
+      }
+
+      return maxDepth;
+   }
+
+   //------------------------------------------------------------------------------------
+   // Math functions
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Calculate real part of complex point given x in cartesian space, as a
+    * double-double: c[0] gets the high part and c[1] the low part.
+    */
+   protected void realPart(int x, double[] c) {
+      addProduct(arHigh, arLow, x, dxHigh, dxLow, c);
+   }
+
+   /**
+    * Calculate imaginary part of complex point given y in cartesian space, as a
+    * double-double.
+    */
+   protected void imaginaryPart(int y, double[] c) {
+      addProduct(aiHigh, aiLow, y, dyHigh, dyLow, c);
+   }
+
+   /**
+    * Put a + n * b into c, where a and b are double-doubles and n is an integer.
+    */
+   private static void addProduct(
+      double ah, double al, int n, double bh, double bl, double[] c)
+   {
+      double ph = n * bh;
+      double pl = Math.fma(n, bh, -ph) + (n * bl);
+      double s = ah + ph;
+      double v = s - ah;
+      double e = ((ah - (s - v)) + (ph - v)) + (al + pl);
+
+      c[0] = s + e;
+      c[1] = e - (c[0] - s);
+   }
+}
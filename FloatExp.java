@@ -0,0 +1,131 @@
+import java.math.*;
+
+/**
+ * <p>A floating point number with a double mantissa and a separate int exponent
+ * (mantissa * 2^exponent), for deltas too small for a double, which underflows below
+ * about 1e-308. The mantissa is kept between 0.5 and 1 (or 0), so the range is
+ * limited only by the int exponent, while the precision is that of a double.</p>
+ *
+ * <p>Values are immutable. Hot loops that can't afford to allocate a value per
+ * operation keep the mantissa and exponent in local variables instead (see
+ * PerturbationKernel).</p>
+ */
+final class FloatExp {
+   static final FloatExp ZERO = new FloatExp(0.0, 0);
+
+   private static final double     LOG2_10 = Math.log(10.0) / Math.log(2.0);
+   private static final BigDecimal TWO = BigDecimal.valueOf(2);
+   private static final BigDecimal HALF = new BigDecimal("0.5");
+
+   final double mantissa;   // 0, or 0.5 <= |mantissa| < 1
+   final int    exponent;
+
+   //------------------------------------------------------------------------------------
+   // Constructors
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Create the number mantissa * 2^exponent, for any finite mantissa.
+    */
+   FloatExp(double mantissa, int exponent) {
+      if (mantissa == 0.0) {
+         this.mantissa = 0.0;
+         this.exponent = 0;
+      } else {
+         int shift = Math.getExponent(mantissa) + 1;
+
+         this.mantissa = Math.scalb(mantissa, -shift);
+         this.exponent = exponent + shift;
+      }
+   }
+
+   static FloatExp valueOf(double d) {
+      return new FloatExp(d, 0);
+   }
+
+   /**
+    * Convert the given BigDecimal, however small or large, rounding it to the
+    * precision of a double.
+    */
+   static FloatExp valueOf(BigDecimal b) {
+      if (b.signum() == 0) {
+         return ZERO;
+      }
+
+      // Scale by a power of 2 near 1/|b| so the rest fits in a double.
+
+      int        e = (int) Math.round((b.precision() - b.scale()) * LOG2_10);
+      BigDecimal m = (e < 0
+         ? b.multiply(TWO.pow(-e))
+         : b.divide(TWO.pow(e), MathContext.DECIMAL64));
+
+      return new FloatExp(m.doubleValue(), e);
+   }
+
+   //------------------------------------------------------------------------------------
+   // Arithmetic
+   //------------------------------------------------------------------------------------
+
+   FloatExp add(FloatExp f) {
+      if (f.mantissa == 0.0) {
+         return this;
+      }
+
+      if (mantissa == 0.0) {
+         return f;
+      }
+
+      if (exponent >= f.exponent) {
+         return new FloatExp(mantissa + Math.scalb(f.mantissa, f.exponent - exponent), exponent);
+      }
+
+      return new FloatExp(Math.scalb(mantissa, exponent - f.exponent) + f.mantissa, f.exponent);
+   }
+
+   FloatExp subtract(FloatExp f) {
+      return add(f.negate());
+   }
+
+   FloatExp negate() {
+      return new FloatExp(-mantissa, exponent);
+   }
+
+   FloatExp multiply(FloatExp f) {
+      return new FloatExp(mantissa * f.mantissa, exponent + f.exponent);
+   }
+
+   FloatExp multiply(double d) {
+      return new FloatExp(mantissa * d, exponent);
+   }
+
+   FloatExp divide(double d) {
+      return new FloatExp(mantissa / d, exponent);
+   }
+
+   //------------------------------------------------------------------------------------
+   // Conversion
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Convert to a double, which is 0 (or infinite) if this is outside the range of
+    * doubles.
+    */
+   double doubleValue() {
+      return Math.scalb(mantissa, exponent);
+   }
+
+   /**
+    * Convert to a BigDecimal with the given precision.
+    */
+   BigDecimal toBigDecimal(MathContext mc) {
+      BigDecimal m = new BigDecimal(mantissa);
+
+      return (exponent >= 0
+         ? m.multiply(TWO.pow(exponent), mc)
+         : m.multiply(HALF.pow(-exponent, mc), mc));
+   }
+
+   public String toString() {
+      return mantissa + "p" + exponent;
+   }
+}
@@ -0,0 +1,119 @@
+import java.math.*;
+
+/**
+ * <p>Escape-time kernel in floats, for shallow views (such as the default view and
+ * thumbnails), where the points are so far apart that floats tell them apart as well
+ * as doubles do. Floats are half the size of doubles, so twice as many fit in a
+ * vector (see FloatVectorKernel) and the coordinate arrays take half the memory.</p>
+ *
+ * <p>The real part of each column and the imaginary part of each row are worked out
+ * once per view, in doubles, and rounded to floats. Points inside the main cardioid
+ * or the period-2 bulb are found in doubles, as for the other kernels. Periodicity
+ * checking works as in the scalar kernel (see ScalarKernel).</p>
+ *
+ * <p>The renderer picks this kernel for views whose points are more than
+ * TileRenderer.FLOAT_SPACING apart, relative to the size of the coordinates.</p>
+ */
+public class FloatKernel extends Kernel {
+   protected float[] crs;   // Real part of each column
+   protected float[] cis;   // Imaginary part of each row
+
+   public String getName() {
+      return "float";
+   }
+
+   /**
+    * Set the view, and work out the real part of each column and the imaginary part
+    * of each row.
+    */
+   public void setView(
+      BigDecimal ar, BigDecimal ai, BigDecimal br, BigDecimal bi,
+      int imageWidth, int imageHeight, int maxDepth)
+   {
+      super.setView(ar, ai, br, bi, imageWidth, imageHeight, maxDepth);
+
+      crs = new float[imageWidth];
+      cis = new float[imageHeight];
+
+      for (int x = 0; x < imageWidth; x ++) {
+         crs[x] = (float) realPart(x);
+      }
+
+      for (int y = 0; y < imageHeight; y ++) {
+         cis[y] = (float) imaginaryPart(y);
+      }
+   }
+
+   //------------------------------------------------------------------------------------
+   // Calculation
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Calculate the depth of the point at the given cartesian coordinates.
+    */
+   public int depth(int x, int y) {
+      return depth(crs[x], cis[y]);
+   }
+
+   /**
+    * Calculate the depths of a row.
+    */
+   public void row(int y, int left, int right, int step, IterationBuffer depths) {
+      float ci = cis[y];
+      int   i = (y * imageWidth) + left;
+
+      for (int x = left; x < right; x += step, i += step) {
+         depths.set(i, depth(crs[x], ci));
+      }
+   }
+
+   /**
+    * Iterate the Mandelbrot equation for the given point and return its depth.
+    */
+   protected int depth(float cr, float ci) {
+      float zr = 0.0f;
+      float zi = 0.0f;
+      float zr2;
+      float sr = 0.0f;     // saved orbit point, real part
+      float si = 0.0f;     // saved orbit point, imaginary part
+      int   steps = 0;     // steps since orbit point was saved
+      int   interval = 8;  // steps between saves
+      int   d;
+
+      // If the point is inside the main cardioid or the period-2 bulb, don't bother
+      // iterating.
+
+      if (inSet(cr, ci)) {
+         return maxDepth;
+      }
+
+      for (d = 0; d < maxDepth; d ++) {
+         zr2 = ((zr * zr) - (zi * zi)) + cr;
+         zi = (2.0f * zr * zi) + ci;
+         zr = zr2;
+
+         if (((zr * zr) + (zi * zi)) > 4.0f) {
+            break;
+         }
+
+         // If the orbit is back at the saved point, it is in a cycle. Move the saved
+         // point forward, doubling the interval each time.
+
+         if (periodicity) {
+            if (Math.abs(zr - sr) <= periodTolerance && Math.abs(zi - si) <= periodTolerance) {
+               periodSkips.increment();
+               return maxDepth;
+            }
+
+            if (++ steps == interval) {
+               sr = zr;
+               si = zi;
+               steps = 0;
+               interval <<= 1;
+            }
+         }
+      }
+
+      return d;
+   }
+}
@@ -0,0 +1,173 @@
+import jdk.incubator.vector.*;
+
+/**
+ * <p>Float kernel on the JDK Vector API: calculates a row a whole vector of floats at
+ * a time, which is twice as many points per vector as the double vector kernel (see
+ * VectorKernel, which this follows). The real parts are loaded straight from the
+ * float coordinate array, or gathered from it when only every step'th point of a
+ * row is wanted. Each lane does the same arithmetic as the scalar float
+ * loop, so the depths are the same as the float kernel's. Periodicity checking works
+ * as in the vector kernel, with one saved orbit point per lane.</p>
+ *
+ * <p>Depths are counted in a float vector, which is exact up to 2^24, so the renderer
+ * doesn't use this kernel for maximum depths over that (see TileRenderer).</p>
+ *
+ * <p>Needs the jdk.incubator.vector module (--add-modules jdk.incubator.vector) at
+ * both compile time and run time.</p>
+ */
+public class FloatVectorKernel extends FloatKernel {
+   private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+   public String getName() {
+      return "floatvector";
+   }
+
+   /**
+    * Return true if the hardware has vectors of more than one float.
+    */
+   public boolean isAccelerated() {
+      return SPECIES.length() > 1;
+   }
+
+   /**
+    * Calculate the depths of every step'th point of a row, a vector of points at a
+    * time.
+    */
+   public void row(int y, int left, int right, int step, IterationBuffer depths) {
+      int       lanes = SPECIES.length();
+      int       points = (right - left + step - 1) / step;
+      float     ci = cis[y];
+      float[]   gathered = new float[lanes];
+      float[]   counts = new float[lanes];
+      boolean[] active = new boolean[lanes];
+      int       i = (y * imageWidth) + left;
+
+      for (int p = 0; p < points; p += lanes) {
+         int         n = Math.min(lanes, points - p);
+         int         x = left + (p * step);
+         FloatVector cr;
+
+         // Points known to be in the set, and lanes past the end of the row, are
+         // inactive from the start.
+
+         for (int k = 0; k < lanes; k ++) {
+            active[k] = k < n && ! inSet(crs[x + (k * step)], ci);
+         }
+
+         if (step == 1) {
+            cr = FloatVector.fromArray(SPECIES, crs, x, SPECIES.indexInRange(x, right));
+         } else {
+            for (int k = 0; k < lanes; k ++) {
+               gathered[k] = (k < n ? crs[x + (k * step)] : 0.0f);
+            }
+
+            cr = FloatVector.fromArray(SPECIES, gathered, 0);
+         }
+
+         if (periodicity) {
+            iteratePeriodic(cr, ci, active, counts);
+         } else {
+            iterate(cr, ci, active, counts);
+         }
+
+         for (int k = 0; k < n; k ++, i += step) {
+            depths.set(i, (int) counts[k]);
+         }
+      }
+   }
+
+   /**
+    * Iterate the Mandelbrot equation for a vector of points with the given real parts
+    * and imaginary part, and put the depth of each point in counts. Inactive lanes
+    * get the maximum depth.
+    */
+   private void iterate(FloatVector cr, float ci, boolean[] active, float[] counts) {
+      FloatVector       civ = FloatVector.broadcast(SPECIES, ci);
+      FloatVector       zr = FloatVector.zero(SPECIES);
+      FloatVector       zi = FloatVector.zero(SPECIES);
+      FloatVector       zr2;
+      FloatVector       depth = FloatVector.broadcast(SPECIES, maxDepth);
+      VectorMask<Float> running = VectorMask.fromArray(SPECIES, active, 0);
+
+      for (int d = 0; d < maxDepth && running.anyTrue(); d ++) {
+         zr2 = zr.mul(zr).sub(zi.mul(zi)).add(cr);
+         zi = zr.mul(2.0f).mul(zi).add(civ);
+         zr = zr2;
+
+         // Record the depth of the lanes that escaped on this iteration.
+
+         VectorMask<Float> escaped =
+            zr.mul(zr).add(zi.mul(zi)).compare(VectorOperators.GT, 4.0f).and(running);
+
+         depth = depth.blend(d, escaped);
+         running = running.andNot(escaped);
+      }
+
+      depth.intoArray(counts, 0);
+   }
+
+   /**
+    * Iterate as above, checking for cycles as in the vector kernel.
+    */
+   private void iteratePeriodic(
+      FloatVector cr, float ci, boolean[] active, float[] counts)
+   {
+      FloatVector       civ = FloatVector.broadcast(SPECIES, ci);
+      FloatVector       zr = FloatVector.zero(SPECIES);
+      FloatVector       zi = FloatVector.zero(SPECIES);
+      FloatVector       zr2;
+      FloatVector       depth = FloatVector.broadcast(SPECIES, maxDepth);
+      VectorMask<Float> running = VectorMask.fromArray(SPECIES, active, 0);
+      FloatVector       sr = FloatVector.zero(SPECIES);   // saved orbit points
+      FloatVector       si = FloatVector.zero(SPECIES);
+      int               steps = 0;      // steps since orbit points were saved
+      int               interval = 8;   // steps between saves
+      float             tolerance = (float) periodTolerance;
+
+      // Round the tolerance down, so that floats compare with it as in the scalar
+      // loop, which compares them with the double.
+
+      if (tolerance > periodTolerance) {
+         tolerance = Math.nextDown(tolerance);
+      }
+
+      for (int d = 0; d < maxDepth && running.anyTrue(); d ++) {
+         zr2 = zr.mul(zr).sub(zi.mul(zi)).add(cr);
+         zi = zr.mul(2.0f).mul(zi).add(civ);
+         zr = zr2;
+
+         VectorMask<Float> escaped =
+            zr.mul(zr).add(zi.mul(zi)).compare(VectorOperators.GT, 4.0f).and(running);
+
+         depth = depth.blend(d, escaped);
+         running = running.andNot(escaped);
+
+         // Lanes whose orbits are back at their saved points are in cycles.
+
+         VectorMask<Float> cycled = zr.sub(sr).abs().max(zi.sub(si).abs())
+            .compare(VectorOperators.LE, tolerance).and(running);
+
+         if (cycled.anyTrue()) {
+            periodSkips.add(cycled.trueCount());
+         }
+
+         running = running.andNot(cycled);
+
+         // Move the saved points forward when the interval is up, doubling it. They
+         // are blended in rather than assigned in the branch, which keeps the vectors
+         // in registers instead of boxed.
+
+         VectorMask<Float> save = SPECIES.maskAll(++ steps == interval);
+
+         sr = sr.blend(zr, save);
+         si = si.blend(zi, save);
+
+         if (steps == interval) {
+            steps = 0;
+            interval <<= 1;
+         }
+      }
+
+      depth.intoArray(counts, 0);
+   }
+}
@@ -0,0 +1,148 @@
+/**
+ * <p>Escape-time kernel that iterates four points of a row together in plain Java.
+ * The four orbits don't depend on each other, so their multiplies and adds can be
+ * scheduled side by side instead of waiting on one long dependency chain.</p>
+ *
+ * <p>Each point has an active flag (1 or 0) that is added to its depth after every
+ * iteration and cleared when the point escapes, so escaped points don't need a branch
+ * out of the loop; they simply keep iterating without being counted. The loop stops
+ * when all four have escaped or the maximum depth is reached. The arithmetic for each
+ * point is the same as the scalar loop, so the depths are the same.</p>
+ *
+ * <p>Periodicity checking works as in the scalar loop, with a saved orbit point for
+ * each of the four; they start together, so they are saved together. A point whose
+ * orbit comes back to its saved point is made inactive with the maximum depth.</p>
+ *
+ * <p>Single points, as asked for by the Mariani-Silver and boundary tracing engines,
+ * are calculated by the scalar loop.</p>
+ */
+public class InterleavedKernel extends ScalarKernel {
+   public String getName() {
+      return "interleaved";
+   }
+
+   /**
+    * Calculate the depths of every step'th point of a row, four points at a time.
+    */
+   public void row(int y, int left, int right, int step, IterationBuffer depths) {
+      double ci = imaginaryPart(y);
+      int    i = (y * imageWidth) + left;
+      int    x;
+
+      for (x = left; x + (3 * step) < right; x += 4 * step) {
+         double cr0 = realPart(x);
+         double cr1 = realPart(x + step);
+         double cr2 = realPart(x + (2 * step));
+         double cr3 = realPart(x + (3 * step));
+         double zr0 = 0.0, zi0 = 0.0, t0;
+         double zr1 = 0.0, zi1 = 0.0, t1;
+         double zr2 = 0.0, zi2 = 0.0, t2;
+         double zr3 = 0.0, zi3 = 0.0, t3;
+
+         // Points known to be in the set are inactive from the start, with the
+         // maximum depth.
+
+         int a0 = (inSet(cr0, ci) ? 0 : 1);
+         int a1 = (inSet(cr1, ci) ? 0 : 1);
+         int a2 = (inSet(cr2, ci) ? 0 : 1);
+         int a3 = (inSet(cr3, ci) ? 0 : 1);
+         int n0 = (a0 == 0 ? maxDepth : 0);
+         int n1 = (a1 == 0 ? maxDepth : 0);
+         int n2 = (a2 == 0 ? maxDepth : 0);
+         int n3 = (a3 == 0 ? maxDepth : 0);
+         double sr0 = 0.0, si0 = 0.0;   // saved orbit points
+         double sr1 = 0.0, si1 = 0.0;
+         double sr2 = 0.0, si2 = 0.0;
+         double sr3 = 0.0, si3 = 0.0;
+         int    steps = 0;      // steps since orbit points were saved
+         int    interval = 8;   // steps between saves
+
+         for (int d = 0; d < maxDepth && (a0 | a1 | a2 | a3) != 0; d ++) {
+            t0 = ((zr0 * zr0) - (zi0 * zi0)) + cr0;
+            t1 = ((zr1 * zr1) - (zi1 * zi1)) + cr1;
+            t2 = ((zr2 * zr2) - (zi2 * zi2)) + cr2;
+            t3 = ((zr3 * zr3) - (zi3 * zi3)) + cr3;
+            zi0 = (2.0 * zr0 * zi0) + ci;
+            zi1 = (2.0 * zr1 * zi1) + ci;
+            zi2 = (2.0 * zr2 * zi2) + ci;
+            zi3 = (2.0 * zr3 * zi3) + ci;
+            zr0 = t0;
+            zr1 = t1;
+            zr2 = t2;
+            zr3 = t3;
+
+            a0 &= (((zr0 * zr0) + (zi0 * zi0)) > 4.0 ? 0 : 1);
+            a1 &= (((zr1 * zr1) + (zi1 * zi1)) > 4.0 ? 0 : 1);
+            a2 &= (((zr2 * zr2) + (zi2 * zi2)) > 4.0 ? 0 : 1);
+            a3 &= (((zr3 * zr3) + (zi3 * zi3)) > 4.0 ? 0 : 1);
+            n0 += a0;
+            n1 += a1;
+            n2 += a2;
+            n3 += a3;
+
+            // Points whose orbits are back at their saved points are in cycles. Move
+            // the saved points forward, doubling the interval each time.
+
+            if (periodicity) {
+               if (a0 != 0 && cycled(zr0 - sr0, zi0 - si0)) {
+                  a0 = 0;
+                  n0 = maxDepth;
+               }
+
+               if (a1 != 0 && cycled(zr1 - sr1, zi1 - si1)) {
+                  a1 = 0;
+                  n1 = maxDepth;
+               }
+
+               if (a2 != 0 && cycled(zr2 - sr2, zi2 - si2)) {
+                  a2 = 0;
+                  n2 = maxDepth;
+               }
+
+               if (a3 != 0 && cycled(zr3 - sr3, zi3 - si3)) {
+                  a3 = 0;
+                  n3 = maxDepth;
+               }
+
+               if (++ steps == interval) {
+                  sr0 = zr0;
+                  si0 = zi0;
+                  sr1 = zr1;
+                  si1 = zi1;
+                  sr2 = zr2;
+                  si2 = zi2;
+                  sr3 = zr3;
+                  si3 = zi3;
+                  steps = 0;
+                  interval <<= 1;
+               }
+            }
+         }
+
+         depths.set(i, n0);
+         depths.set(i + step, n1);
+         depths.set(i + (2 * step), n2);
+         depths.set(i + (3 * step), n3);
+         i += 4 * step;
+      }
+
+      // Do the rest of the row one point at a time.
+
+      for (; x < right; x += step, i += step) {
+         depths.set(i, depth(realPart(x), ci));
+      }
+   }
+
+   /**
+    * Return true if an orbit is the given distance from its saved point, within the
+    * period tolerance, and count it as skipped.
+    */
+   private boolean cycled(double dr, double di) {
+      if (Math.abs(dr) <= periodTolerance && Math.abs(di) <= periodTolerance) {
+         periodSkips.increment();
+         return true;
+      }
+
+      return false;
+   }
+}
@@ -0,0 +1,318 @@
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * <p>Holds the depth (iteration count) of every point of a plot, row by row, so the
+ * image can be colored again without recalculating the fractal.</p>
+ *
+ * <p>Depths run from 0 to the maximum depth, so the smallest element type that can
+ * hold the maximum depth is used: a byte for maximum depths up to 255, a short up to
+ * 65535, and an int above that.</p>
+ *
+ * <p>For renders larger than the heap, the depths can be kept in a memory-mapped file
+ * instead (see map), which the renderer writes straight into. The file starts with a
+ * header giving the size and maximum depth, so it can be opened again later (see
+ * open), read-only, to recolor or crop the render without recalculating it.</p>
+ */
+public abstract class IterationBuffer {
+   protected int width;
+   protected int height;
+   protected int maxDepth;
+
+   //------------------------------------------------------------------------------------
+   // Constructors
+   //------------------------------------------------------------------------------------
+
+   protected IterationBuffer(int width, int height, int maxDepth) {
+      this.width = width;
+      this.height = height;
+      this.maxDepth = maxDepth;
+   }
+
+   /**
+    * Create a buffer of the given size for depths up to the given maximum depth.
+    */
+   public static IterationBuffer create(int width, int height, int maxDepth) {
+      if (maxDepth <= 0xff) {
+         return new ByteIterationBuffer(width, height, maxDepth);
+      } else if (maxDepth <= 0xffff) {
+         return new ShortIterationBuffer(width, height, maxDepth);
+      } else {
+         return new IntIterationBuffer(width, height, maxDepth);
+      }
+   }
+
+   /**
+    * Create a buffer of the given size in the given file, which is replaced, and map
+    * it into memory.
+    */
+   public static MappedIterationBuffer map(File file, int width, int height, int maxDepth)
+      throws IOException
+   {
+      return new MappedIterationBuffer(file, width, height, maxDepth);
+   }
+
+   /**
+    * Map the buffer in the given file, which was created by map, for reading only.
+    */
+   public static MappedIterationBuffer open(File file) throws IOException {
+      return new MappedIterationBuffer(file);
+   }
+
+   //------------------------------------------------------------------------------------
+   // Accessors
+   //------------------------------------------------------------------------------------
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   public int getMaxDepth() {
+      return maxDepth;
+   }
+
+   /**
+    * Return true if this buffer has the given size and maximum depth.
+    */
+   public boolean fits(int width, int height, int maxDepth) {
+      return this.width == width && this.height == height && this.maxDepth == maxDepth;
+   }
+
+   /**
+    * Get the depth at the given index (y * width + x).
+    */
+   public abstract int get(int i);
+
+   /**
+    * Set the depth at the given index (y * width + x).
+    */
+   public abstract void set(int i, int depth);
+
+   //------------------------------------------------------------------------------------
+   // Implementations
+   //------------------------------------------------------------------------------------
+
+   static class ByteIterationBuffer extends IterationBuffer {
+      private byte[] depths;
+
+      ByteIterationBuffer(int width, int height, int maxDepth) {
+         super(width, height, maxDepth);
+         depths = new byte[width * height];
+      }
+
+      public int get(int i) {
+         return depths[i] & 0xff;
+      }
+
+      public void set(int i, int depth) {
+         depths[i] = (byte) depth;
+      }
+   }
+
+   static class ShortIterationBuffer extends IterationBuffer {
+      private short[] depths;
+
+      ShortIterationBuffer(int width, int height, int maxDepth) {
+         super(width, height, maxDepth);
+         depths = new short[width * height];
+      }
+
+      public int get(int i) {
+         return depths[i] & 0xffff;
+      }
+
+      public void set(int i, int depth) {
+         depths[i] = (short) depth;
+      }
+   }
+
+   static class IntIterationBuffer extends IterationBuffer {
+      private int[] depths;
+
+      IntIterationBuffer(int width, int height, int maxDepth) {
+         super(width, height, maxDepth);
+         depths = new int[width * height];
+      }
+
+      public int get(int i) {
+         return depths[i];
+      }
+
+      public void set(int i, int depth) {
+         depths[i] = depth;
+      }
+   }
+
+   /**
+    * Buffer in a memory-mapped file. Depths take 1, 2 or 4 bytes, as in the other
+    * buffers, and are read and written in place in the mapping. Files over 1 GB are
+    * mapped in several segments, since one mapping can't be larger than 2 GB.
+    *
+    * <p>The mapping is released by close, rather than whenever the buffer happens to
+    * be garbage collected, so a run that renders many large images doesn't keep the
+    * old mappings around.</p>
+    */
+   public static class MappedIterationBuffer extends IterationBuffer {
+      private static final int  MAGIC = 0x4d544442;   // "MTDB"
+      private static final int  HEADER = 16;         // Bytes before the depths
+      private static final int  SHIFT = 30;          // Bytes per segment, as a power of 2
+      private static final long MASK = (1L << SHIFT) - 1;
+
+      private MappedByteBuffer[] segments;
+      private int                size;     // Bytes per depth
+      private long               offset;   // Index of first depth of this view
+      private boolean            view;     // True if the mapping belongs to another
+
+      MappedIterationBuffer(File file, int width, int height, int maxDepth)
+         throws IOException
+      {
+         super(width, height, maxDepth);
+
+         RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+         try {
+            raf.setLength(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(width);
+            raf.writeInt(height);
+            raf.writeInt(maxDepth);
+            mapSegments(raf.getChannel(), FileChannel.MapMode.READ_WRITE);
+         } finally {
+            raf.close();
+         }
+      }
+
+      MappedIterationBuffer(File file) throws IOException {
+         super(0, 0, 0);
+
+         RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+         try {
+            if (raf.readInt() != MAGIC) {
+               throw new IOException(file + " is not an iteration buffer.");
+            }
+
+            width = raf.readInt();
+            height = raf.readInt();
+            maxDepth = raf.readInt();
+            mapSegments(raf.getChannel(), FileChannel.MapMode.READ_ONLY);
+         } finally {
+            raf.close();
+         }
+      }
+
+      /**
+       * Create a view of the given rows of the given buffer, sharing its mapping.
+       */
+      private MappedIterationBuffer(MappedIterationBuffer buffer, int top, int height) {
+         super(buffer.width, height, buffer.maxDepth);
+         segments = buffer.segments;
+         size = buffer.size;
+         offset = buffer.offset + ((long) top * width);
+         view = true;
+      }
+
+      /**
+       * Map the depths in the given mode, growing the file to fit them if writing.
+       * The mapping stays valid after the channel is closed.
+       */
+      private void mapSegments(FileChannel channel, FileChannel.MapMode mode)
+         throws IOException
+      {
+         size = (maxDepth <= 0xff ? 1 : (maxDepth <= 0xffff ? 2 : 4));
+
+         long length = (long) width * height * size;
+
+         segments = new MappedByteBuffer[(int) ((length + MASK) >>> SHIFT)];
+
+         for (int s = 0; s < segments.length; s ++) {
+            long start = (long) s << SHIFT;
+
+            segments[s] = channel.map(
+               mode, HEADER + start, Math.min(length - start, MASK + 1));
+         }
+      }
+
+      /**
+       * Get a buffer of the given rows of this one, sharing its mapping, for
+       * rendering or coloring a strip of a larger image.
+       */
+      public MappedIterationBuffer rows(int top, int height) {
+         return new MappedIterationBuffer(this, top, height);
+      }
+
+      /**
+       * Write any changes to the file.
+       */
+      public void force() {
+         for (int s = 0; s < segments.length; s ++) {
+            segments[s].force();
+         }
+      }
+
+      /**
+       * Release the mapping, without writing it (see force). Neither this buffer nor
+       * any buffer of its rows may be used afterwards. Closing a buffer of rows only
+       * lets go of it.
+       */
+      public void close() {
+         if (segments != null && ! view) {
+            for (int s = 0; s < segments.length; s ++) {
+               unmap(segments[s]);
+            }
+         }
+
+         segments = null;
+      }
+
+      /**
+       * Unmap the given segment now, through the JDK's unsupported Unsafe where it
+       * can be reached; otherwise it is unmapped when it is garbage collected.
+       */
+      private static void unmap(MappedByteBuffer segment) {
+         try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field    field = unsafeClass.getDeclaredField("theUnsafe");
+
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class)
+               .invoke(field.get(null), segment);
+         } catch(ReflectiveOperationException | RuntimeException ex) {
+         }
+      }
+
+      public int get(int i) {
+         long             b = (offset + i) * size;
+         MappedByteBuffer segment = segments[(int) (b >>> SHIFT)];
+         int              j = (int) (b & MASK);
+
+         if (size == 1) {
+            return segment.get(j) & 0xff;
+         } else if (size == 2) {
+            return segment.getShort(j) & 0xffff;
+         } else {
+            return segment.getInt(j);
+         }
+      }
+
+      public void set(int i, int depth) {
+         long             b = (offset + i) * size;
+         MappedByteBuffer segment = segments[(int) (b >>> SHIFT)];
+         int              j = (int) (b & MASK);
+
+         if (size == 1) {
+            segment.put(j, (byte) depth);
+         } else if (size == 2) {
+            segment.putShort(j, (short) depth);
+         } else {
+            segment.putInt(j, depth);
+         }
+      }
+   }
+}
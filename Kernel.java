@@ -0,0 +1,280 @@
+import java.math.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * <p>An escape-time kernel: calculates the depth of points of the plot given their
+ * cartesian coordinates. The renderer sets the view (bounds, image size, and maximum
+ * depth) before each render, then calls the kernel from any of its worker threads,
+ * so kernels must not keep per-point state in fields.</p>
+ *
+ * <p>The bounds are given as BigDecimals, so that deep zooms keep their precision.
+ * Kernels that work in doubles use the bounds rounded to doubles; kernels that need
+ * more precision (see PerturbationKernel) use the precise bounds.</p>
+ *
+ * <p>Points inside the main cardioid or the period-2 bulb are known to be in the set,
+ * so kernels give them the maximum depth without iterating (see inSet). The number of
+ * points skipped by each test, and by periodicity checking, is counted for
+ * reporting.</p>
+ *
+ * <p>Kernels are created by name with create. "scalar" is the plain double loop;
+ * "interleaved" iterates four points side by side in plain Java; "vector" iterates a
+ * whole vector of points at once with the JDK Vector API, if the jdk.incubator.vector
+ * module is available; "auto" picks the vector kernel if it is available and the
+ * hardware has vectors of more than one double, and otherwise the interleaved
+ * kernel. "float" iterates in floats, for shallow views only (see FloatKernel).
+ * "fixed" iterates in 64-bit fixed point, with the same depths on every
+ * platform (see FixedPointKernel). "doubledouble" and "perturbation" are for deeper
+ * zooms (see DoubleDoubleKernel and PerturbationKernel).</p>
+ */
+public abstract class Kernel {
+   public static final String[] KERNEL_NAMES =
+      {"auto", "scalar", "interleaved", "vector", "float", "fixed", "doubledouble",
+       "perturbation"};
+
+   protected int       maxDepth;
+   protected int       imageWidth;
+   protected int       imageHeight;
+   protected double    ar;            // Top-left, real part
+   protected double    ai;            // Top-left, imaginary part
+   protected double    br;            // Bottom-right, real part
+   protected double    bi;            // Bottom-right, imaginary part
+   protected BigDecimal arPrecise;
+   protected BigDecimal aiPrecise;
+   protected BigDecimal brPrecise;
+   protected BigDecimal biPrecise;
+   protected boolean   periodicity = true;   // True if checking for cycles
+   protected double    periodTolerance = 0.0;
+   protected LongAdder cardioidSkips = new LongAdder();
+   protected LongAdder bulbSkips = new LongAdder();
+   protected LongAdder periodSkips = new LongAdder();
+
+   //------------------------------------------------------------------------------------
+   // Factory
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Create the kernel with the given name. If the vector kernel is asked for but
+    * can't be loaded, the interleaved kernel is returned instead. "float" gives the
+    * float vector kernel if it is available and accelerated, and otherwise the plain
+    * float kernel.
+    */
+   public static Kernel create(String name) {
+      if (name.equals("scalar")) {
+         return new ScalarKernel();
+      }
+
+      if (name.equals("float")) {
+         Kernel kernel = loadVector("FloatVectorKernel");
+
+         return (kernel != null && kernel.isAccelerated() ? kernel : new FloatKernel());
+      }
+
+      if (name.equals("fixed")) {
+         return new FixedPointKernel();
+      }
+
+      if (name.equals("doubledouble")) {
+         return new DoubleDoubleKernel();
+      }
+
+      if (name.equals("perturbation")) {
+         return new PerturbationKernel();
+      }
+
+      if (! name.equals("interleaved")) {
+         Kernel kernel = loadVector("VectorKernel");
+
+         if (kernel != null && (name.equals("vector") || kernel.isAccelerated())) {
+            return kernel;
+         }
+      }
+
+      return new InterleavedKernel();
+   }
+
+   /**
+    * Load a vector kernel by class name, so that this class doesn't depend on the
+    * incubator module. Returns null if it can't be loaded.
+    */
+   private static Kernel loadVector(String className) {
+      try {
+         return (Kernel) Class.forName(className).getDeclaredConstructor().newInstance();
+      } catch(ReflectiveOperationException ex) {
+         System.out.println("Vector kernel not available: " + ex);
+      } catch(LinkageError ex) {
+         System.out.println("Vector kernel not available: " + ex);
+      }
+
+      return null;
+   }
+
+   //------------------------------------------------------------------------------------
+   // Parameters
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Get the name of this kernel.
+    */
+   public abstract String getName();
+
+   /**
+    * Describe this kernel, and anything about the current view that is worth
+    * reporting.
+    */
+   public String describe() {
+      return getName();
+   }
+
+   /**
+    * Return true if this kernel is expected to be faster than the scalar kernel on
+    * this machine.
+    */
+   public boolean isAccelerated() {
+      return false;
+   }
+
+   /**
+    * Set the view: bounds top-left (ar, ai) and bottom-right (br, bi), image size, and
+    * maximum depth.
+    */
+   public void setView(
+      BigDecimal ar, BigDecimal ai, BigDecimal br, BigDecimal bi,
+      int imageWidth, int imageHeight, int maxDepth)
+   {
+      this.arPrecise = ar;
+      this.aiPrecise = ai;
+      this.brPrecise = br;
+      this.biPrecise = bi;
+      this.ar = ar.doubleValue();
+      this.ai = ai.doubleValue();
+      this.br = br.doubleValue();
+      this.bi = bi.doubleValue();
+      this.imageWidth = imageWidth;
+      this.imageHeight = imageHeight;
+      this.maxDepth = maxDepth;
+   }
+
+   /**
+    * Turn periodicity (cycle) checking on or off, and set how close an orbit must come
+    * to the saved orbit point to be taken as a cycle.
+    */
+   public void setPeriodicity(boolean periodicity, double periodTolerance) {
+      this.periodicity = periodicity;
+      this.periodTolerance = periodTolerance;
+   }
+
+   /**
+    * Reset the counts of skipped points.
+    */
+   public void resetCounts() {
+      cardioidSkips.reset();
+      bulbSkips.reset();
+      periodSkips.reset();
+   }
+
+   public long getCardioidSkips() {
+      return cardioidSkips.sum();
+   }
+
+   public long getBulbSkips() {
+      return bulbSkips.sum();
+   }
+
+   public long getPeriodSkips() {
+      return periodSkips.sum();
+   }
+
+   //------------------------------------------------------------------------------------
+   // Calculation
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Calculate the depth of the point at the given cartesian coordinates.
+    */
+   public abstract int depth(int x, int y);
+
+   /**
+    * Calculate the depths of the points of row y from left to right (exclusive) into
+    * the given iteration buffer.
+    */
+   public void row(int y, int left, int right, IterationBuffer depths) {
+      row(y, left, right, 1, depths);
+   }
+
+   /**
+    * Calculate the depths of every step'th point of row y, from left to right
+    * (exclusive), into the given iteration buffer. The points in between are left
+    * alone. Kernels that can calculate several points at once override this.
+    */
+   public void row(int y, int left, int right, int step, IterationBuffer depths) {
+      int i = (y * imageWidth) + left;
+
+      for (int x = left; x < right; x += step, i += step) {
+         depths.set(i, depth(x, y));
+      }
+   }
+
+   /**
+    * Return true, and count the point, if the given point is inside the main cardioid
+    * or the period-2 bulb, so it never escapes.
+    *
+    * Cardioid: q * (q + (cr - 1/4)) <= ci^2 / 4, where q = (cr - 1/4)^2 + ci^2
+    * Bulb:     (cr + 1)^2 + ci^2 <= 1/16
+    */
+   protected boolean inSet(double cr, double ci) {
+      double ci2 = ci * ci;
+      double q = ((cr - 0.25) * (cr - 0.25)) + ci2;
+
+      if (q * (q + (cr - 0.25)) <= 0.25 * ci2) {
+         cardioidSkips.increment();
+         return true;
+      }
+
+      if (((cr + 1.0) * (cr + 1.0)) + ci2 <= 0.0625) {
+         bulbSkips.increment();
+         return true;
+      }
+
+      return false;
+   }
+
+   //------------------------------------------------------------------------------------
+   // Math functions
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Get a math context precise enough to tell apart neighboring points of a view
+    * whose bounds a and b are the given number of points apart, with 20 digits to
+    * spare.
+    */
+   public static MathContext mathContext(BigDecimal a, BigDecimal b, int points) {
+      BigDecimal size = a.subtract(b).abs();
+      int        digits = 20;
+
+      // The size is about 10^(precision - scale), so a point is about
+      // 10^(precision - scale) / points.
+
+      if (size.signum() != 0) {
+         digits += Math.max(0, size.scale() - size.precision())
+            + Integer.toString(points).length();
+      }
+
+      return new MathContext(Math.max(digits, 34));
+   }
+
+   /**
+    * Calculate real part of complex point given x in cartesian space.
+    */
+   protected double realPart(int x) {
+      // Fracman: tl.real() + (double) x / w * (br.real() - tl.real())
+      return ar + (double) x / imageWidth * (br - ar);
+   }
+
+   /**
+    * Calculate imaginary part of complex point given y in cartesian space.
+    */
+   protected double imaginaryPart(int y) {
+      // Fracman: tl.imag() + (double) y / h * (br.imag() - tl.imag())
+      return ai + (double) y / imageHeight * (bi - ai);
+   }
+}
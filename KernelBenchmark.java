@@ -0,0 +1,108 @@
+/**
+ * <p>Times the escape-time kernels against each other on a few standard views. Each
+ * view is rendered by brute force on a single thread, so the times are per core.
+ * Every kernel is warmed up before it is timed, and its depths are checked against
+ * the scalar kernel's.</p>
+ *
+ * <p>Usage: java KernelBenchmark [kernel ...]</p>
+ *
+ * <p>With no arguments, every kernel is timed. Add --add-modules
+ * jdk.incubator.vector to time the vector kernel.</p>
+ */
+public class KernelBenchmark {
+   private static final int WARMUP = 3;       // Renders before timing
+   private static final int ITERATIONS = 5;   // Renders timed
+
+   // Name, ar, ai, br, bi, max. depth
+
+   private static final Object[][] VIEWS = {
+      {"default",  -2.5, 1.5, 1.5, -1.5, 256},
+      {"deep",     -2.5, 1.5, 1.5, -1.5, 5000},
+      {"seahorse", -0.76, 0.11, -0.74, 0.095, 2000},
+      {"minibrot", -1.7690, 0.0015, -1.7685, -0.0020, 5000}
+   };
+
+   private static final int WIDTH = 640;
+   private static final int HEIGHT = 480;
+
+   /**
+    * Run the benchmark.
+    */
+   public static void main(String args[]) {
+      String[] names = (args.length > 0 ? args : new String[] {"scalar", "interleaved", "vector", "float", "fixed", "doubledouble"});
+
+      System.out.println("view      kernel          ms/frame   diffs");
+
+      for (int v = 0; v < VIEWS.length; v ++) {
+         IterationBuffer expected = null;
+
+         for (int k = 0; k < names.length; k ++) {
+            Kernel          kernel = Kernel.create(names[k]);
+            TileRenderer    renderer = new TileRenderer(1, 64);
+            IterationBuffer depths = render(renderer, kernel, VIEWS[v]);
+            long            time = 0;
+
+            for (int i = 1; i < WARMUP; i ++) {
+               render(renderer, kernel, VIEWS[v]);
+            }
+
+            for (int i = 0; i < ITERATIONS; i ++) {
+               render(renderer, kernel, VIEWS[v]);
+               time += renderer.getRenderTime();
+            }
+
+            if (expected == null) {
+               expected = render(new TileRenderer(1, 64), new ScalarKernel(), VIEWS[v]);
+            }
+
+            System.out.println(
+               pad((String) VIEWS[v][0], 10) + pad(kernel.getName(), 16)
+               + pad(Long.toString(time / ITERATIONS), 11) + diffs(expected, depths));
+         }
+      }
+   }
+
+   /**
+    * Render the given view with the given renderer and kernel, without letting the
+    * renderer switch shallow views to floats.
+    */
+   private static IterationBuffer render(TileRenderer renderer, Kernel kernel, Object[] view) {
+      int             maxDepth = ((Integer) view[5]).intValue();
+      IterationBuffer depths = IterationBuffer.create(WIDTH, HEIGHT, maxDepth);
+
+      renderer.setKernel(kernel);
+      renderer.setFloats(false);
+      renderer.setMaxDepth(maxDepth);
+      renderer.setImageSize(WIDTH, HEIGHT);
+      renderer.setBounds(
+         ((Double) view[1]).doubleValue(), ((Double) view[2]).doubleValue(),
+         ((Double) view[3]).doubleValue(), ((Double) view[4]).doubleValue());
+      renderer.render(depths, new int[WIDTH * HEIGHT], new int[] {0});
+      return depths;
+   }
+
+   /**
+    * Count the points whose depths differ.
+    */
+   private static int diffs(IterationBuffer a, IterationBuffer b) {
+      int count = 0;
+
+      for (int i = 0; i < WIDTH * HEIGHT; i ++) {
+         if (a.get(i) != b.get(i)) {
+            count ++;
+         }
+      }
+
+      return count;
+   }
+
+   private static String pad(String s, int width) {
+      StringBuffer sb = new StringBuffer(s);
+
+      while (sb.length() < width) {
+         sb.append(' ');
+      }
+
+      return sb.toString();
+   }
+}
@@ -0,0 +1,438 @@
+import java.awt.image.*;
+import java.io.*;
+import java.math.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+
+/**
+ * <p>Renders images without a display, for running on servers and render farms. No
+ * window is created and AWT runs headless; only the image writer uses it.</p>
+ *
+ * <p>Usage:</p>
+ *
+ * <pre>   java MandelBatch ar ai br bi width height maxdepth output [depthfile]
+ *   java MandelBatch -f jobfile
+ *   java MandelBatch -r depthfile output</pre>
+ *
+ * <p>The first form renders one image with top-left (ar, ai) and bottom-right (br, bi).
+ * The second renders one image for each line of the job file, which has the same
+ * fields separated by spaces. Blank lines and lines starting with # are
+ * skipped. The bounds may have any number of digits. The image format is taken from
+ * the extension of the output file (png if there is none that ImageIO knows).</p>
+ *
+ * <p>PNG images are streamed: the image is rendered in strips one tile high, across
+ * the whole width, with all the threads, while a writer thread encodes the strips
+ * before them in order (see PngWriter). At most STRIPS strips are held at a time, so
+ * images far larger than memory (100k x 100k and more) can be rendered. Each strip
+ * is given its own bounds, worked out exactly from the bounds of the image, so its
+ * points are where they are in the whole image, though the double kernels may round
+ * them differently in the last bit. On deep zooms, the strips of each band about as
+ * high as the image is wide share one reference orbit, at the center of the band
+ * (see PerturbationKernel.setReference), instead of calculating one each. Other
+ * formats are rendered whole and written through ImageIO.</p>
+ *
+ * <p>If a depth file is given, the depths are rendered into it, memory-mapped (see
+ * IterationBuffer.map), instead of into the heap, and kept there. The third form
+ * colors a depth file again, with the current colors, into a PNG image, a strip at
+ * a time, without recalculating it.</p>
+ *
+ * <p>The other settings (colors, kernel, threads, tile size, and so on) are read from
+ * MandelThing.properties, if there is one in the current directory, as for
+ * MandelThing. The threads default to one per processor. Jobs share one renderer,
+ * so the later jobs of a file run on warm code.</p>
+ *
+ * <p>Exits with status 1 if the arguments are wrong, and 2 if any job fails.</p>
+ */
+public class MandelBatch {
+   private static final int STRIPS = 3;   // Strips held at a time when streaming
+
+   private Properties   props;
+   private TileRenderer renderer;
+   private int[]        colorMap;
+
+   //------------------------------------------------------------------------------------
+   // Constructors
+   //------------------------------------------------------------------------------------
+
+   public MandelBatch() {
+      props = loadProperties();
+      renderer = createRenderer(props, getInt(props, "threads", 0));
+      colorMap = ColorMap.create(props.getProperty("colors", "blue").trim());
+   }
+
+   //------------------------------------------------------------------------------------
+   // Rendering
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Render the job given by the fields ar, ai, br, bi, width, height, maxdepth,
+    * output, and optionally depthfile, and write the image.
+    */
+   public void render(String[] job) throws IOException {
+      if (job.length != 8 && job.length != 9) {
+         throw new IllegalArgumentException("Expected 8 or 9 fields, found " + job.length + ".");
+      }
+
+      BigDecimal ar = new BigDecimal(job[0]);
+      BigDecimal ai = new BigDecimal(job[1]);
+      BigDecimal br = new BigDecimal(job[2]);
+      BigDecimal bi = new BigDecimal(job[3]);
+      int        width = Integer.parseInt(job[4]);
+      int        height = Integer.parseInt(job[5]);
+      int        maxDepth = Integer.parseInt(job[6]);
+      File       output = new File(job[7]);
+      File       depthFile = (job.length > 8 ? new File(job[8]) : null);
+
+      if (width < 1 || height < 1 || maxDepth < 2) {
+         throw new IllegalArgumentException("Size must be >= 1 and depth >= 2.");
+      }
+
+      long   time = System.nanoTime();
+      String name = output.getName();
+      String format = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+
+      if (name.indexOf('.') < 0 || ! ImageIO.getImageWritersBySuffix(format).hasNext()) {
+         format = "png";
+      }
+
+      long renderTime = (format.equals("png")
+         ? renderStrips(ar, ai, br, bi, width, height, maxDepth, output, depthFile)
+         : renderImage(ar, ai, br, bi, width, height, maxDepth, output, format, depthFile));
+
+      time = (System.nanoTime() - time) / 1000000;
+
+      System.out.println(
+         output + ": " + width + "x" + height + ", " + renderer.getFrameKernel().getName()
+         + ", render " + renderTime + " ms, total " + time + " ms");
+   }
+
+   /**
+    * Render the whole image at once and write it in the given format. Returns the
+    * render time in milliseconds.
+    */
+   private long renderImage(
+      BigDecimal ar, BigDecimal ai, BigDecimal br, BigDecimal bi,
+      int width, int height, int maxDepth, File output, String format, File depthFile)
+      throws IOException
+   {
+      BufferedImage   image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      int[]           pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+      IterationBuffer depths = (depthFile != null
+         ? IterationBuffer.map(depthFile, width, height, maxDepth)
+         : IterationBuffer.create(width, height, maxDepth));
+
+      renderer.setMaxDepth(maxDepth);
+      renderer.setImageSize(width, height);
+      renderer.setBounds(ar, ai, br, bi);
+      try {
+         renderer.render(depths, pixels, colorMap);
+      } finally {
+         if (depthFile != null) {
+            ((IterationBuffer.MappedIterationBuffer) depths).force();
+            ((IterationBuffer.MappedIterationBuffer) depths).close();
+         }
+      }
+
+      ImageIO.write(image, format, output);
+      return renderer.getRenderTime();
+   }
+
+   /**
+    * Render the image in strips and stream it to a PNG file, encoding each strip on
+    * the writer thread while the next ones are rendered. Returns the render time in
+    * milliseconds.
+    */
+   private long renderStrips(
+      BigDecimal ar, BigDecimal ai, BigDecimal br, BigDecimal bi,
+      int width, int height, int maxDepth, File output, File depthFile)
+      throws IOException
+   {
+      final int                  stripHeight = Math.min(renderer.getTileSize(), height);
+      final BlockingQueue<int[]> free = new ArrayBlockingQueue<int[]>(STRIPS);
+      final BlockingQueue<int[]> done = new ArrayBlockingQueue<int[]>(STRIPS);
+      final PngWriter            png =
+         new PngWriter(new FileOutputStream(output), width, height);
+      MathContext                mc = Kernel.mathContext(ai, bi, height);
+      BigDecimal                 dy = bi.subtract(ai).divide(BigDecimal.valueOf(height), mc);
+      IterationBuffer            depths = IterationBuffer.create(width, stripHeight, maxDepth);
+      long                       renderTime = 0;
+      IterationBuffer.MappedIterationBuffer all = (depthFile != null
+         ? IterationBuffer.map(depthFile, width, height, maxDepth)
+         : null);
+
+      for (int s = 0; s < STRIPS; s ++) {
+         free.add(new int[width * stripHeight]);
+      }
+
+      // The writer thread takes the strips in order, writes their rows, and hands the
+      // pixel arrays back to be rendered into again.
+
+      FutureTask<Object> writer = new FutureTask<Object>(new Callable<Object>() {
+         public Object call() throws Exception {
+            try {
+               for (int top = 0; top < height; top += stripHeight) {
+                  int[] pixels = done.take();
+
+                  for (int y = 0; y < Math.min(stripHeight, height - top); y ++) {
+                     png.writeRow(pixels, y * width);
+                  }
+
+                  free.put(pixels);
+               }
+            } catch(Exception ex) {
+               try {
+                  png.close();
+               } catch(IOException closeEx) {
+               }
+
+               throw ex;
+            }
+
+            png.close();
+            return null;
+         }
+      });
+      Thread writerThread = new Thread(writer, "PNG writer");
+
+      writerThread.setDaemon(true);
+      writerThread.start();
+
+      // Deep strips share the reference orbit at the center of each band of strips
+      // about as high as the image is wide, rather than each calculating its own;
+      // within a band, points are no further from the reference than in a square
+      // view.
+
+      BigDecimal two = BigDecimal.valueOf(2);
+      int        band = Math.max(width / stripHeight, 1) * stripHeight;   // Rows
+
+      try {
+         for (int top = 0; top < height; top += stripHeight) {
+            int   h = Math.min(stripHeight, height - top);
+
+            if (top % band == 0) {
+               int rows = Math.min(band, height - top);
+
+               renderer.setReference(
+                  ar.add(br).divide(two),
+                  ai.add(dy.multiply(BigDecimal.valueOf((2L * top) + rows)).divide(two)));
+            }
+
+            int[] pixels = null;
+
+            // Wait for a free strip, unless the writer has failed.
+
+            while (pixels == null) {
+               if (writer.isDone()) {
+                  writer.get();
+               }
+
+               pixels = free.poll(100, TimeUnit.MILLISECONDS);
+            }
+
+            if (all != null) {
+               depths = all.rows(top, h);
+            } else if (h < stripHeight) {
+               depths = IterationBuffer.create(width, h, maxDepth);
+            }
+
+            renderer.setMaxDepth(maxDepth);
+            renderer.setImageSize(width, h);
+            renderer.setBounds(
+               ar, ai.add(dy.multiply(BigDecimal.valueOf(top))),
+               br, ai.add(dy.multiply(BigDecimal.valueOf(top + h))));
+            renderer.render(depths, pixels, colorMap);
+            renderTime += renderer.getRenderTime();
+            done.put(pixels);
+         }
+
+         writer.get();
+
+         if (all != null) {
+            all.force();
+         }
+      } catch(InterruptedException ex) {
+         throw new InterruptedIOException();
+      } catch(ExecutionException ex) {
+         throw (ex.getCause() instanceof IOException
+            ? (IOException) ex.getCause()
+            : new IOException(ex.getCause()));
+      } finally {
+         renderer.setReference(null, null);
+         writerThread.interrupt();
+
+         if (all != null) {
+            all.close();
+         }
+      }
+
+      return renderTime;
+   }
+
+   /**
+    * Color the depths in the given depth file into a PNG image, a strip at a time.
+    */
+   public void recolor(File depthFile, File output) throws IOException {
+      long            time = System.nanoTime();
+      IterationBuffer.MappedIterationBuffer all = IterationBuffer.open(depthFile);
+      int             width = all.getWidth();
+      int             height = all.getHeight();
+      int             stripHeight = Math.min(renderer.getTileSize(), height);
+      int[]           pixels = new int[width * stripHeight];
+      PngWriter       png = new PngWriter(new FileOutputStream(output), width, height);
+
+      try {
+         for (int top = 0; top < height; top += stripHeight) {
+            int h = Math.min(stripHeight, height - top);
+
+            renderer.recolor(all.rows(top, h), pixels, colorMap);
+
+            for (int y = 0; y < h; y ++) {
+               png.writeRow(pixels, y * width);
+            }
+         }
+      } finally {
+         png.close();
+         all.close();
+      }
+
+      time = (System.nanoTime() - time) / 1000000;
+      System.out.println(output + ": " + width + "x" + height + ", recolor " + time + " ms");
+   }
+
+   /**
+    * Render every job in the given job file, one per line. Returns the number of jobs
+    * that failed.
+    */
+   public int renderJobs(File jobFile) throws IOException {
+      BufferedReader in = new BufferedReader(new FileReader(jobFile));
+      int            failed = 0;
+
+      try {
+         String line;
+
+         while ((line = in.readLine()) != null) {
+            line = line.trim();
+
+            if (line.length() == 0 || line.startsWith("#")) {
+               continue;
+            }
+
+            try {
+               render(line.split("\\s+"));
+            } catch(Exception ex) {
+               System.out.println(line + ": " + ex);
+               failed ++;
+            }
+         }
+      } finally {
+         in.close();
+      }
+
+      return failed;
+   }
+
+   //------------------------------------------------------------------------------------
+   // Utility methods
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Load the settings from MandelThing.properties, if there is one.
+    */
+   static Properties loadProperties() {
+      Properties props = new Properties();
+
+      try {
+         FileInputStream propFile = new FileInputStream("MandelThing.properties");
+
+         try {
+            props.load(propFile);
+         } finally {
+            propFile.close();
+         }
+      } catch(FileNotFoundException ex) {
+      } catch(IOException ex) {
+         System.out.println(ex);
+      }
+
+      return props;
+   }
+
+   /**
+    * Create a renderer with the given number of threads (0 means one per processor)
+    * and the rest of its settings from the given properties.
+    */
+   static TileRenderer createRenderer(Properties props, int threads) {
+      TileRenderer renderer = new TileRenderer(threads, getInt(props, "tilesize", 64));
+
+      renderer.setKernel(Kernel.create(props.getProperty("kernel", "auto").trim()));
+      renderer.setPeriodicity(getBoolean(props, "periodicity", true));
+      renderer.setSeries(getBoolean(props, "series", true));
+      renderer.setBilinear(getBoolean(props, "bilinear", true));
+      renderer.setRebase(getBoolean(props, "rebase", true));
+      renderer.setFloats(getBoolean(props, "floats", true));
+      renderer.setEngine(Math.max(Arrays.asList(TileRenderer.ENGINE_NAMES)
+         .indexOf(props.getProperty("renderer", "brute").trim()), 0));
+
+      try {
+         renderer.setPeriodTolerance(Double.parseDouble(props.getProperty("periodtolerance")));
+      } catch(Exception ex) {
+      }
+
+      return renderer;
+   }
+
+   static int getInt(Properties props, String key, int value) {
+      try {
+         return Integer.parseInt(props.getProperty(key).trim());
+      } catch(Exception ex) {
+         return value;
+      }
+   }
+
+   static boolean getBoolean(Properties props, String key, boolean value) {
+      if (props.getProperty(key) != null) {
+         return Boolean.valueOf(props.getProperty(key).trim()).booleanValue();
+      }
+
+      return value;
+   }
+
+   //------------------------------------------------------------------------------------
+   // Main
+   //------------------------------------------------------------------------------------
+
+   public static void main(String args[]) {
+      System.setProperty("java.awt.headless", "true");
+
+      boolean jobs = (args.length == 2 && args[0].equals("-f"));
+      boolean recolor = (args.length == 3 && args[0].equals("-r"));
+
+      if (! (args.length == 8 || args.length == 9 || jobs || recolor)) {
+         System.out.println(
+            "Usage: java MandelBatch ar ai br bi width height maxdepth output [depthfile]");
+         System.out.println("       java MandelBatch -f jobfile");
+         System.out.println("       java MandelBatch -r depthfile output");
+         System.exit(1);
+      }
+
+      int failed = 0;
+
+      try {
+         MandelBatch batch = new MandelBatch();
+
+         if (jobs) {
+            failed = batch.renderJobs(new File(args[1]));
+         } else if (recolor) {
+            batch.recolor(new File(args[1]), new File(args[2]));
+         } else {
+            batch.render(args);
+         }
+      } catch(Exception ex) {
+         System.out.println(ex);
+         failed ++;
+      }
+
+      System.exit(failed > 0 ? 2 : 0);
+   }
+}
@@ -1,2 +1,2 @@
 @echo off
-java MandelThing %1 %2 %3 %4 %5 %6 %7 %8 %9
+java --add-modules jdk.incubator.vector MandelThing %1 %2 %3 %4 %5 %6 %7 %8 %9
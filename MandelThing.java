@@ -2,7 +2,9 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.*;
 import java.io.*;
+import java.math.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.swing.*;
 import javax.swing.event.*;
 import javax.swing.border.*;
@@ -42,32 +44,59 @@ import javax.swing.border.*;
 public class MandelThing extends JFrame {
    public static final String TITLE = "MandelThing";
    public static final String VERSION = "1.0";
+   public static final String[] COLOR_NAMES = ColorMap.NAMES;
 
    private int     defaultMaxDepth = 256;
    private int     defaultImageWidth = 640;
    private int     defaultImageHeight = 480;
+   private int     threads = 0;          // Render threads; 0 means one per processor
+   private int     tileSize = 64;        // Render tile size
+   private boolean periodicity = true;   // True if checking orbits for cycles
+   private double  periodTolerance = 0.0;
+   private String  engine = "brute";     // Name of rendering engine
+   private boolean validate = false;     // True if checking plots against brute force
+   private String  kernel = "auto";      // Name of escape-time kernel
+   private boolean series = true;        // True if using series approximation
+   private boolean bilinear = true;      // True if using bilinear approximation
+   private boolean rebase = true;        // True if rebasing deep zoom deltas
+   private boolean floats = true;        // True if shallow views use floats
+   private boolean progressive = true;   // True if rendering coarse to fine
+   private int     tileCache = 64;       // Megabytes of tiles to cache; 0 means none
+   private String  diskCache = null;     // Directory of tiles cached on disk, if any
+   private int     diskCacheSize = 256;  // Megabytes of tiles to cache on disk
    private int     maxDepth;
    private int     imageWidth;
    private int     imageHeight;
-   private double  ar;            // Top-left, real part
-   private double  ai;            // Top-left, imaginary part
-   private double  br;            // Bottom-right, real part
-   private double  bi;            // Bottom-right, imaginary part
+   private BigDecimal ar;         // Top-left, real part
+   private BigDecimal ai;         // Top-left, imaginary part
+   private BigDecimal br;         // Bottom-right, real part
+   private BigDecimal bi;         // Bottom-right, imaginary part
    private int     zbLeft = -1;   // Left coordinate of zoom box
    private int     zbTop = -1;    // Top coordinate of zoom box
    private int     zbWidth = 0;   // Zoom box width
    private int     zbHeight = 0;  // Zoom box height
    private boolean zbOn = false;  // True if zoom box on
-   private Color[] colorMap;
-   private Image   imageBuffer;   // Image of current plot
+   private String  colors = "blue";   // Name of color map
+   private int[]   colorMap;      // RGB values
+   private IterationBuffer depthBuffer;   // Depths of current plot
+   private BufferedImage imageBuffer;   // Image of current plot
+   private int[]   pixels;        // RGB pixels of image buffer
+   private TileRenderer renderer;
+   private ExecutorService plotter;   // Runs plots off the event thread, one at a time
+   private TileRenderer.CancelToken plotToken;   // Token of the latest plot
 
    private BorderLayout borderLayout1 = new BorderLayout();
    private BorderLayout borderLayout2 = new BorderLayout();
-   private JPanel imagePanel = new JPanel();
+   private JPanel imagePanel = new JPanel() {
+      protected void paintComponent(Graphics g) {
+         paintImage(g);
+      }
+   };
    private JPanel controlPanel = new JPanel();
    private JPanel buttonPanel1 = new JPanel();
    private JLabel maxDepthLabel = new JLabel();
    private JTextField maxDepthField = new JTextField();
+   private JComboBox<String> colorsBox = new JComboBox<String>(COLOR_NAMES);
    private JButton resetButton = new JButton();
    private GridLayout gridLayout1 = new GridLayout();
    private JPanel panel5 = new JPanel();
@@ -86,6 +115,37 @@ public class MandelThing extends JFrame {
 
       loadProperties();
       setDefaultParameters();
+      renderer = new TileRenderer(threads, tileSize);
+      renderer.setKernel(Kernel.create(kernel));
+      renderer.setPeriodicity(periodicity);
+      renderer.setSeries(series);
+      renderer.setBilinear(bilinear);
+      renderer.setRebase(rebase);
+      renderer.setFloats(floats);
+      renderer.setProgressive(progressive);
+      renderer.setPeriodTolerance(periodTolerance);
+      renderer.setEngine(
+         Math.max(Arrays.asList(TileRenderer.ENGINE_NAMES).indexOf(engine), 0));
+
+      if (tileCache > 0 || diskCache != null) {
+         renderer.setTileCache(new TileCache((long) tileCache << 20));
+      }
+
+      if (diskCache != null) {
+         try {
+            renderer.getTileCache().setDiskCache(
+               new DiskTileCache(new File(diskCache), (long) diskCacheSize << 20));
+         } catch(IOException ex) {
+            System.out.println(ex);
+         }
+      }
+
+      plotter = Executors.newSingleThreadExecutor();
+      renderer.setTileListener(new TileRenderer.TileListener() {
+         public void tileRendered(int left, int top, int width, int height) {
+            drawImage(left, top, width, height);
+         }
+      });
 
       // Initialize UI components.
 
@@ -126,6 +186,17 @@ public class MandelThing extends JFrame {
          }
       });
 
+      // Add listener to colors box. Changing the colors only recolors the current
+      // plot.
+
+      colorsBox.addActionListener(new ActionListener() {
+         public void actionPerformed(ActionEvent event) {
+            colors = (String) colorsBox.getSelectedItem();
+            initColorMap();
+            recolor();
+         }
+      });
+
       // Add mouse listeners to image panel to listen for mouse press and drag in
       // order to draw zoom box.
 
@@ -187,11 +258,12 @@ public class MandelThing extends JFrame {
       spacerPanel.setPreferredSize(new Dimension(10, 2));
 
       buttonPanel1.setLayout(null);
-      buttonPanel1.setMinimumSize(new Dimension(280, 23));
-      buttonPanel1.setPreferredSize(new Dimension(280, 23));
+      buttonPanel1.setMinimumSize(new Dimension(340, 23));
+      buttonPanel1.setPreferredSize(new Dimension(340, 23));
       buttonPanel1.add(maxDepthLabel, null);
       buttonPanel1.add(maxDepthField, null);
       buttonPanel1.add(panel5, null);
+      buttonPanel1.add(colorsBox, null);
       panel5.add(plotButton, null);
       panel5.add(resetButton, null);
 
@@ -209,6 +281,10 @@ public class MandelThing extends JFrame {
       panel5.setPreferredSize(new Dimension(124, 23));
       panel5.setBounds(new Rectangle(133, 0, 124, 23));
 
+      colorsBox.setSelectedItem(colors);
+      colorsBox.setBounds(new Rectangle(262, 1, 70, 21));
+      colorsBox.setToolTipText("Colors");
+
       plotButton.setMargin(new Insets(0, 0, 0, 0));
       plotButton.setText("Plot");
 
@@ -233,63 +309,48 @@ public class MandelThing extends JFrame {
    //------------------------------------------------------------------------------------
 
    /**
-    * Initialize the color map.
+    * Initialize the color map, shading the color named by colors.
     */
    private void initColorMap() {
-      colorMap = new Color[256];
-
-      for (int i = 0; i < 256; i ++) {
-         int j = (i * 16) % 256;
-         colorMap[i] = (new Color(0, 0, j)).brighter();
-      }
+      colorMap = ColorMap.create(colors);
 
       /*
-      colorMap = new Color[256 * 7];
+      colorMap = new int[256 * 7];
 
       for (int i = 0; i < 256; i ++) {
          int j = (i * 16) % 256;
 
-         colorMap[i + (256 * 4)] = (new Color(j, 0, 0)).brighter(); // red
-         colorMap[i + (256 * 1)] = (new Color(0, j, 0)).brighter(); // green
-         colorMap[i + (256 * 2)] = (new Color(j, j, j)).brighter(); // gray
-         colorMap[i + (256 * 5)] = (new Color(j, 0, j)).brighter(); // violet
-         colorMap[i + (256 * 6)] = (new Color(j, j, 0)).brighter(); // yellow
-         colorMap[i + (256 * 3)] = (new Color(0, j, j)).brighter(); // cyan
-         colorMap[i + (256 * 1)] = (new Color(0, 0, j)).brighter(); // blue
+         colorMap[i + (256 * 4)] = (new Color(j, 0, 0)).brighter().getRGB(); // red
+         colorMap[i + (256 * 1)] = (new Color(0, j, 0)).brighter().getRGB(); // green
+         colorMap[i + (256 * 2)] = (new Color(j, j, j)).brighter().getRGB(); // gray
+         colorMap[i + (256 * 5)] = (new Color(j, 0, j)).brighter().getRGB(); // violet
+         colorMap[i + (256 * 6)] = (new Color(j, j, 0)).brighter().getRGB(); // yellow
+         colorMap[i + (256 * 3)] = (new Color(0, j, j)).brighter().getRGB(); // cyan
+         colorMap[i + (256 * 1)] = (new Color(0, 0, j)).brighter().getRGB(); // blue
       }
       */
    }
 
    /**
-    * Create the image buffer if necessary and clear the graphics spaces.
+    * Create the image buffer if necessary and clear the graphics spaces. The
+    * renderer writes straight into the pixels of the image buffer, and the image
+    * panel paints it from there.
     */
    private void initGraphics() {
       if (imageBuffer == null) {
-         imageBuffer = createImage(imageWidth, imageHeight);
+         imageBuffer = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+         pixels = ((DataBufferInt) imageBuffer.getRaster().getDataBuffer()).getData();
       }
 
-      Graphics ig = imageBuffer.getGraphics();
-      ig.setColor(Color.black);
-      ig.fillRect(0, 0, imageWidth, imageHeight);
-      drawImage();
+      Arrays.fill(pixels, Color.black.getRGB());
+      imagePanel.repaint();
    }
 
    /**
-    * Plot the fractal.
+    * Plot the fractal. The plot in progress, if any, is cancelled, and the new one is
+    * rendered on the plotter thread, so the UI stays responsive.
     */
    public void plot() {
-      double   cr = 0.0;   // calculated point, real part
-      double   ci = 0.0;   // calculated point, imaginary part
-      double   zr = 0.0;
-      double   zi = 0.0;
-      double   zr2 = 0.0;
-      int      d = 0;      // depth of calculated point
-      int      x;
-      int      y;
-      Color    cc = null;  // color of calculated point
-      Graphics ig = imageBuffer.getGraphics();
-      Graphics pg = imagePanel.getGraphics();
-
       System.out.println("Plotting...");
 
       // Check the parameters. If invalid, return.
@@ -299,6 +360,48 @@ public class MandelThing extends JFrame {
          return;
       }
 
+      cancelPlot();
+
+      final TileRenderer.CancelToken token = new TileRenderer.CancelToken();
+      final int        depth = maxDepth;
+      final int[]      map = colorMap;
+      final BigDecimal r1 = ar;
+      final BigDecimal i1 = ai;
+      final BigDecimal r2 = br;
+      final BigDecimal i2 = bi;
+
+      plotToken = token;
+      plotter.execute(new Runnable() {
+         public void run() {
+            plot(token, depth, map, r1, i1, r2, i2);
+         }
+      });
+   }
+
+   /**
+    * Cancel the plot in progress, if any. It stops within a row or so.
+    */
+   private void cancelPlot() {
+      if (plotToken != null) {
+         plotToken.cancel();
+      }
+   }
+
+   /**
+    * Plot the fractal with the given maximum depth, color map and bounds, on the
+    * plotter thread. Returns early, without reporting, if the given token is
+    * cancelled.
+    */
+   private void plot(
+      TileRenderer.CancelToken token, int maxDepth, int[] colorMap,
+      BigDecimal ar, BigDecimal ai, BigDecimal br, BigDecimal bi)
+   {
+      // A plot that was cancelled before it started has nothing to do.
+
+      if (token.isCancelled()) {
+         return;
+      }
+
       // Initialize the graphics spaces.
 
       // initColorMap();
@@ -311,39 +414,50 @@ public class MandelThing extends JFrame {
       System.out.println("ai          = " + ai);
       System.out.println("br          = " + br);
       System.out.println("bi          = " + bi);
+      System.out.println("threads     = " + renderer.getThreads());
+      System.out.println("engine      = " + TileRenderer.ENGINE_NAMES[renderer.getEngine()]);
 
-      // Iterate through graphics area.
+      // Render the image buffer tile by tile, keeping the depths in the depth buffer.
+      // Each tile is repainted on the image panel as soon as it is done.
 
-      for (y = 0; y < imageHeight; y ++) {
-         // Fracman: tl.imag() + (double) y / h * (br.imag() - tl.imag())
-         ci = imaginaryPart(y);
+      if (depthBuffer == null || ! depthBuffer.fits(imageWidth, imageHeight, maxDepth)) {
+         depthBuffer = IterationBuffer.create(imageWidth, imageHeight, maxDepth);
+      }
 
-         for (x = 0; x < imageWidth; x ++) {
-            // Fracman: tl.real() + (double) x / w * (br.real() - tl.real())
-            cr = realPart(x);
-            zr = 0.0;
-            zi = 0.0;
-            zr2 = 0.0;
+      renderer.setMaxDepth(maxDepth);
+      renderer.setImageSize(imageWidth, imageHeight);
+      renderer.setBounds(ar, ai, br, bi);
+      renderer.render(depthBuffer, pixels, colorMap, token);
 
-            // Iterate the actual Mandelbrot equation to find the depth of the
-            // point within the set.
+      if (token.isCancelled()) {
+         System.out.println("Cancelled.");
+         return;
+      }
 
-            for (d = 0; d < maxDepth; d ++) {
-               zr2 = ((zr * zr) - (zi * zi)) + cr;
-               zi = (2.0 * zr * zi) + ci;
-               zr = zr2;
+      System.out.println("kernel      = " + renderer.getFrameKernel().describe());
 
-               if (((zr * zr) + (zi * zi)) > 4.0) {
-                  break;
-               }
-            }
+      System.out.println("cardioid    = " + renderer.getCardioidSkips() + " points skipped");
+      System.out.println("bulb        = " + renderer.getBulbSkips() + " points skipped");
+      System.out.println("periodic    = " + renderer.getPeriodSkips() + " points skipped");
+      System.out.println("glitches    = " + renderer.getGlitches() + " points, "
+         + renderer.getGlitchesLeft() + " left");
+      System.out.println("calculated  = " + renderer.getCalculated() + " points");
+      System.out.println("cached      = " + renderer.getCachedTiles() + " tiles");
+
+      if (renderer.getTileCache() != null && renderer.getTileCache().getDiskCache() != null) {
+         System.out.println("disk cache  = " + renderer.getTileCache().getDiskHits()
+            + " tiles read, " + renderer.getTileCache().getDiskCache().getTiles() + " kept");
+      }
+
+      System.out.println("time        = " + renderer.getRenderTime() + " ms");
+
+      // If validating, check the plot against brute force.
 
-            // Draw the pixel. If the depth was not infinity (greater than max.
-            // depth), determine the color from the color map. Otherwise, use black.
+      if (validate) {
+         long differ = renderer.validate(depthBuffer);
 
-            cc = (d > maxDepth ? Color.black : colorMap[d % colorMap.length]);
-            plotPoint(pg, x, y, cc);
-            plotPoint(ig, x, y, cc);
+         if (! token.isCancelled()) {
+            System.out.println("validate    = " + differ + " points differ");
          }
       }
 
@@ -351,6 +465,23 @@ public class MandelThing extends JFrame {
       System.out.println("Done.");
    }
 
+   /**
+    * Color the current plot again from the depth buffer, using the current color map.
+    */
+   public void recolor() {
+      final int[] map = colorMap;
+
+      // Recolor on the plotter thread, after the plot in progress.
+
+      plotter.execute(new Runnable() {
+         public void run() {
+            if (depthBuffer != null) {
+               renderer.recolor(depthBuffer, pixels, map);
+            }
+         }
+      });
+   }
+
    /**
     * Get the plot parameters. Return true if they are valid.
     */
@@ -372,13 +503,20 @@ public class MandelThing extends JFrame {
          return false;
       }
 
-      // If zoom box is on, get bounds.
+      // If zoom box is on, get bounds. All four are worked out from the old bounds
+      // before any of them is changed. They are kept exactly as asked for; the tile
+      // cache is only used for views that happen to line up with its grid.
 
       if (zbOn) {
-         ar = realPart(zbLeft);
-         ai = imaginaryPart(zbTop);
-         br = realPart(zbWidth);
-         bi = imaginaryPart(zbHeight);
+         BigDecimal newAr = realPart(zbLeft);
+         BigDecimal newAi = imaginaryPart(zbTop);
+         BigDecimal newBr = realPart(zbLeft + zbWidth);
+         BigDecimal newBi = imaginaryPart(zbTop + zbHeight);
+
+         ar = newAr;
+         ai = newAi;
+         br = newBr;
+         bi = newBi;
          zbOn = false;
       }
 
@@ -386,12 +524,12 @@ public class MandelThing extends JFrame {
    }
 
    /**
-    * Plot a point at the given coordinates in the given color in the given graphics
-    * space.
+    * Repaint the given area of the image panel from the image buffer. Called by the
+    * renderer, possibly from several threads, as each tile is finished; the painting
+    * itself is done on the event thread.
     */
-   private void plotPoint(Graphics g, int x, int y, Color c) {
-      g.setColor(c);
-      g.drawLine(x, y, x, y);
+   private void drawImage(int left, int top, int width, int height) {
+      imagePanel.repaint(left, top, width, height);
    }
 
    /**
@@ -403,18 +541,17 @@ public class MandelThing extends JFrame {
    }
 
    /**
-    * Called when the screen needs to be repainted.
+    * Paint the image buffer onto the image panel, with the zoom box over it if it is
+    * on. Called on the event thread.
     */
-   public void paint(Graphics g) {
-      super.paint(g);
-      drawImage();
-   }
+   private void paintImage(Graphics g) {
+      g.drawImage(imageBuffer, 0, 0, this);
 
-   /**
-    * Draw the image buffer onto the image panel.
-    */
-   private void drawImage() {
-      imagePanel.getGraphics().drawImage(imageBuffer, 0, 0, this);
+      if (zbOn) {
+         g.setColor(Color.black);
+         g.setXORMode(Color.white);
+         g.drawRect(zbLeft, zbTop, zbWidth, zbHeight);
+      }
    }
 
    //------------------------------------------------------------------------------------
@@ -442,6 +579,9 @@ public class MandelThing extends JFrame {
 
    private void dragZoomBox(Point p) {
       if (! zbOn) {
+         // Zooming abandons the current plot.
+
+         cancelPlot();
          zbOn = true;
          System.out.println("Zoom box on.");
       }
@@ -464,17 +604,24 @@ public class MandelThing extends JFrame {
    //------------------------------------------------------------------------------------
 
    /**
-    * Calculate real part of complex point given x in cartesian space.
+    * Calculate real part of complex point given x in cartesian space. The bounds are
+    * kept as BigDecimals, so zooming in doesn't lose precision.
     */
-   private double realPart(int x) {
-      return ar + (double) x / imageWidth * (br - ar);
+   private BigDecimal realPart(int x) {
+      MathContext mc = Kernel.mathContext(ar, br, imageWidth);
+      BigDecimal  step = br.subtract(ar).divide(BigDecimal.valueOf(imageWidth), mc);
+
+      return ar.add(step.multiply(BigDecimal.valueOf(x)), mc);
    }
 
    /**
     * Calculate imaginary part of complex point given y in cartesian space.
     */
-   private double imaginaryPart(int y) {
-      return ai + (double) y / imageHeight * (bi - ai);
+   private BigDecimal imaginaryPart(int y) {
+      MathContext mc = Kernel.mathContext(ai, bi, imageHeight);
+      BigDecimal  step = bi.subtract(ai).divide(BigDecimal.valueOf(imageHeight), mc);
+
+      return ai.add(step.multiply(BigDecimal.valueOf(y)), mc);
    }
 
    //------------------------------------------------------------------------------------
@@ -525,6 +672,108 @@ public class MandelThing extends JFrame {
                defaultImageHeight = Integer.parseInt(props.getProperty("height"));
             } catch(NumberFormatException ex) {
             }
+
+            // Get color map.
+
+            if (props.getProperty("colors") != null) {
+               colors = props.getProperty("colors").trim();
+            }
+
+            // Get number of render threads.
+
+            try {
+               threads = Integer.parseInt(props.getProperty("threads"));
+            } catch(NumberFormatException ex) {
+            }
+
+            // Get render tile size.
+
+            try {
+               tileSize = Integer.parseInt(props.getProperty("tilesize"));
+            } catch(NumberFormatException ex) {
+            }
+
+            // Get periodicity checking.
+
+            if (props.getProperty("periodicity") != null) {
+               periodicity = Boolean.valueOf(props.getProperty("periodicity").trim()).booleanValue();
+            }
+
+            // Get periodicity tolerance.
+
+            try {
+               periodTolerance = Double.parseDouble(props.getProperty("periodtolerance"));
+            } catch(Exception ex) {
+            }
+
+            // Get rendering engine.
+
+            if (props.getProperty("renderer") != null) {
+               engine = props.getProperty("renderer").trim();
+            }
+
+            // Get escape-time kernel.
+
+            if (props.getProperty("kernel") != null) {
+               kernel = props.getProperty("kernel").trim();
+            }
+
+            // Get series approximation.
+
+            if (props.getProperty("series") != null) {
+               series = Boolean.valueOf(props.getProperty("series").trim()).booleanValue();
+            }
+
+            // Get bilinear approximation.
+
+            if (props.getProperty("bilinear") != null) {
+               bilinear = Boolean.valueOf(props.getProperty("bilinear").trim()).booleanValue();
+            }
+
+            // Get rebasing.
+
+            if (props.getProperty("rebase") != null) {
+               rebase = Boolean.valueOf(props.getProperty("rebase").trim()).booleanValue();
+            }
+
+            // Get floats.
+
+            if (props.getProperty("floats") != null) {
+               floats = Boolean.valueOf(props.getProperty("floats").trim()).booleanValue();
+            }
+
+            // Get progressive rendering.
+
+            if (props.getProperty("progressive") != null) {
+               progressive =
+                  Boolean.valueOf(props.getProperty("progressive").trim()).booleanValue();
+            }
+
+            // Get tile cache size.
+
+            try {
+               tileCache = Integer.parseInt(props.getProperty("tilecache"));
+            } catch(NumberFormatException ex) {
+            }
+
+            // Get disk tile cache directory and size.
+
+            if (props.getProperty("diskcache") != null
+               && props.getProperty("diskcache").trim().length() > 0)
+            {
+               diskCache = props.getProperty("diskcache").trim();
+            }
+
+            try {
+               diskCacheSize = Integer.parseInt(props.getProperty("diskcachesize"));
+            } catch(NumberFormatException ex) {
+            }
+
+            // Get validation.
+
+            if (props.getProperty("validate") != null) {
+               validate = Boolean.valueOf(props.getProperty("validate").trim()).booleanValue();
+            }
          } finally {
             propFile.close();
          }
@@ -545,10 +794,10 @@ public class MandelThing extends JFrame {
       imageWidth = defaultImageWidth;
       imageHeight = defaultImageHeight;
 
-      ar = -2.5;
-      ai = 1.5;
-      br = 1.5;
-      bi = -1.5;
+      ar = new BigDecimal("-2.5");
+      ai = new BigDecimal("1.5");
+      br = new BigDecimal("1.5");
+      bi = new BigDecimal("-1.5");
 
       zbOn = false;
    }
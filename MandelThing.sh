@@ -1,2 +1,2 @@
 #!/bin/sh
-java MandelThing $*
+java --add-modules jdk.incubator.vector MandelThing $*
@@ -0,0 +1,185 @@
+import java.util.concurrent.*;
+
+/**
+ * <p>Mariani-Silver engine. The border of each tile is calculated first. If every
+ * point on the border of a rectangle has the same depth, the inside of the rectangle
+ * is filled with that depth without being calculated (the set is connected, so a band
+ * of uniform depth can't hide anything inside it). Otherwise the rectangle is cut into
+ * four by a calculated row and column through its middle, and each quarter, whose
+ * border is then known, is handled the same way.</p>
+ *
+ * <p>When the renderer runs on its pool, large quarters are forked as subtasks so idle
+ * workers can steal them. Small rectangles are simply calculated point by point.</p>
+ */
+class MarianiSilver {
+   private static final int MIN_SIZE = 4;          // Smallest inside to subdivide
+   private static final int MIN_FORK_AREA = 256;   // Smallest area ever forked
+
+   private TileRenderer    renderer;
+   private IterationBuffer depths;
+   private int             width;
+   private int             forkArea;   // Smallest area to fork
+
+   //------------------------------------------------------------------------------------
+   // Constructors
+   //------------------------------------------------------------------------------------
+
+   MarianiSilver(TileRenderer renderer, IterationBuffer depths) {
+      this.renderer = renderer;
+      this.depths = depths;
+      this.width = depths.getWidth();
+
+      // Fork the first two levels of subdivision of a tile, down to quarters of
+      // quarters, so even small tiles are shared between workers.
+
+      int tileSize = renderer.getTileSize();
+
+      forkArea = Math.max(MIN_FORK_AREA, (tileSize * tileSize) / 16);
+   }
+
+   //------------------------------------------------------------------------------------
+   // Rendering
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Render the given tile (right and bottom exclusive).
+    */
+   void renderTile(int left, int top, int right, int bottom) {
+      int x1 = right - 1;
+      int y1 = bottom - 1;
+
+      // Calculate the border, then subdivide the inside.
+
+      row(top, left, x1);
+      row(y1, left, x1);
+      column(left, top + 1, y1 - 1);
+      column(x1, top + 1, y1 - 1);
+
+      new Subdivision(left, top, x1, y1).compute();
+   }
+
+   /**
+    * Task that handles a rectangle (all edges inclusive) whose border is known.
+    */
+   private class Subdivision extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private int x0;
+      private int y0;
+      private int x1;
+      private int y1;
+
+      Subdivision(int x0, int y0, int x1, int y1) {
+         this.x0 = x0;
+         this.y0 = y0;
+         this.x1 = x1;
+         this.y1 = y1;
+      }
+
+      protected void compute() {
+         // If there is no inside, there is nothing to do.
+
+         if (x1 - x0 < 2 || y1 - y0 < 2) {
+            return;
+         }
+
+         // If the border is uniform, fill the inside.
+
+         int d = uniformBorder(x0, y0, x1, y1);
+
+         if (d >= 0) {
+            fill(x0 + 1, y0 + 1, x1 - 1, y1 - 1, d);
+            return;
+         }
+
+         // If the inside is small, calculate it point by point.
+
+         if (x1 - x0 <= MIN_SIZE || y1 - y0 <= MIN_SIZE) {
+            for (int y = y0 + 1; y < y1; y ++) {
+               row(y, x0 + 1, x1 - 1);
+            }
+
+            return;
+         }
+
+         // Calculate the middle row and column, then handle the four quarters.
+
+         int xm = (x0 + x1) >>> 1;
+         int ym = (y0 + y1) >>> 1;
+
+         row(ym, x0 + 1, x1 - 1);
+         column(xm, y0 + 1, ym - 1);
+         column(xm, ym + 1, y1 - 1);
+
+         Subdivision[] quarters = {
+            new Subdivision(x0, y0, xm, ym),
+            new Subdivision(xm, y0, x1, ym),
+            new Subdivision(x0, ym, xm, y1),
+            new Subdivision(xm, ym, x1, y1)
+         };
+
+         if (renderer.isParallel() && (x1 - x0) * (y1 - y0) >= forkArea) {
+            invokeAll(quarters);
+         } else {
+            for (int q = 0; q < quarters.length; q ++) {
+               quarters[q].compute();
+            }
+         }
+      }
+   }
+
+   //------------------------------------------------------------------------------------
+   // Utility methods
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Return the depth of the border of the given rectangle if it is uniform, or -1
+    * if it isn't.
+    */
+   private int uniformBorder(int x0, int y0, int x1, int y1) {
+      int d = depths.get((y0 * width) + x0);
+
+      for (int x = x0; x <= x1; x ++) {
+         if (depths.get((y0 * width) + x) != d || depths.get((y1 * width) + x) != d) {
+            return -1;
+         }
+      }
+
+      for (int y = y0 + 1; y < y1; y ++) {
+         if (depths.get((y * width) + x0) != d || depths.get((y * width) + x1) != d) {
+            return -1;
+         }
+      }
+
+      return d;
+   }
+
+   /**
+    * Fill the given rectangle (all edges inclusive) with the given depth.
+    */
+   private void fill(int x0, int y0, int x1, int y1, int d) {
+      for (int y = y0; y <= y1; y ++) {
+         for (int x = x0; x <= x1; x ++) {
+            depths.set((y * width) + x, d);
+         }
+      }
+   }
+
+   /**
+    * Calculate the points of the given row from x0 to x1 inclusive.
+    */
+   private void row(int y, int x0, int x1) {
+      for (int x = x0; x <= x1; x ++) {
+         depths.set((y * width) + x, renderer.depthAt(x, y));
+      }
+   }
+
+   /**
+    * Calculate the points of the given column from y0 to y1 inclusive.
+    */
+   private void column(int x, int y0, int y1) {
+      for (int y = y0; y <= y1; y ++) {
+         depths.set((y * width) + x, renderer.depthAt(x, y));
+      }
+   }
+}
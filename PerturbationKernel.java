@@ -0,0 +1,737 @@
+import java.math.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * <p>Perturbation kernel for deep zooms, where the distance between points is too
+ * small for doubles to tell them apart.</p>
+ *
+ * <p>The orbit of one reference point C, at the center of the view, is calculated
+ * once per view in BigDecimal arithmetic, precise enough for the zoom, and rounded to
+ * doubles. The reference point can be fixed instead (see setReference), so that the
+ * views of the strips of a large image share one orbit. Every point c = C + dc is then iterated as a small double delta d from the
+ * reference orbit Z:</p>
+ *
+ * <p> d(n+1) = 2 * Z(n) * d(n) + d(n)^2 + dc </p>
+ *
+ * <p>and z = Z + d is checked for escape as usual. Only dc and d have to be small;
+ * they are relative to C, so doubles keep their full precision however deep the zoom
+ * is, down to the smallest double.</p>
+ *
+ * <p>Beyond that (a spacing below about 1e-271), dc and d are kept as floatexps (see
+ * FloatExp) until d has grown back into the range of doubles, which it does quickly
+ * since it is multiplied by 2 * Z on every iteration. From then on the point is
+ * iterated in doubles as usual, without dc, which is so much smaller than d that
+ * adding it no longer changes d. Series approximation is not used at these
+ * zooms.</p>
+ *
+ * <p>If the reference orbit escapes before a point does, there is no more of it to
+ * follow, so the point is rebased: its current z becomes the delta, and it continues
+ * from the start of the reference orbit (Z(0) = 0).</p>
+ *
+ * <p>With series approximation on, the early iterations, which are almost the same for
+ * every point of a deep zoom, are skipped. The delta after n iterations is
+ * approximated by a truncated series in dc:</p>
+ *
+ * <p> d(n) = A(n) * dc + B(n) * dc^2 + C(n) * dc^3 </p>
+ *
+ * <p>whose coefficients follow the reference orbit:</p>
+ *
+ * <p> A(n+1) = 2 * Z(n) * A(n) + 1           <br>
+ *     B(n+1) = 2 * Z(n) * B(n) + A(n)^2      <br>
+ *     C(n+1) = 2 * Z(n) * C(n) + 2 * A(n) * B(n) </p>
+ *
+ * <p>To choose how many iterations can safely be skipped, a probe point at each
+ * corner and at the middle of each edge of the view is iterated in full alongside
+ * the series. The series is used up to the last iteration at which it agrees with
+ * every probe to within SERIES_TOLERANCE (relative), and every point starts from
+ * there.</p>
+ *
+ * <p>With bilinear approximation on, a point then skips runs of iterations at a time
+ * wherever its delta is small enough for the table of bilinear approximations over
+ * the reference orbit (see BilinearTable) to allow it.</p>
+ *
+ * <p>A point glitches when its delta loses the precision it needs against the
+ * reference orbit. That happens when z = Z + d gets much smaller than Z, so most of d
+ * is cancelled out by Z (Pauldelbrot's criterion): |z|^2 &lt; GLITCH_TOLERANCE *
+ * |Z|^2. With rebasing on, a point is also rebased to the start of the reference
+ * orbit as soon as |z| &lt; |d|, which stops most glitches before they happen. A point
+ * that glitches anyway stops iterating and is marked. Marked points are corrected
+ * afterwards, a batch at a time (see correct): a new reference orbit is calculated at
+ * one of the points of the batch, and the rest are iterated again against it, without
+ * series or bilinear approximation. The number of points that glitched, and the
+ * number still glitched after correcting, are kept for each frame.</p>
+ *
+ * <p>Points are not tested against the cardioid and bulb, since only their offsets
+ * from the reference point are held precisely, not the points themselves. Orbits are
+ * not checked for cycles, since a repeating delta says nothing about z = Z + d while
+ * the reference orbit moves on.</p>
+ */
+public class PerturbationKernel extends Kernel {
+   private static final double SERIES_TOLERANCE = 1e-9;
+   private static final double GLITCH_TOLERANCE = 1e-6;
+   private static final int    DOUBLE_EXPONENT = -900;   // Smallest delta in doubles
+   private static final int    CANCEL_CHECK = 256;       // Iterations between cancel checks
+
+   private double[]   zrs;          // Reference orbit, real parts
+   private double[]   zis;          // Reference orbit, imaginary parts
+   private int        orbitLength;  // Iterations before reference escaped
+   private MathContext mc;          // Precision of reference orbits
+   private double     dx;           // Distance between columns
+   private double     dy;           // Distance between rows
+   private FloatExp   dxExp;        // Distance between columns, as a floatexp
+   private FloatExp   dyExp;        // Distance between rows, as a floatexp
+   private boolean    extended;     // True if dc is too small for doubles
+   private BigDecimal referenceCr;  // Reference point, real part
+   private BigDecimal referenceCi;  // Reference point, imaginary part
+   private BigDecimal fixedCr;      // Reference point set for every view, or null
+   private BigDecimal fixedCi;
+   private double     referenceX;   // Column of reference point, maybe outside view
+   private double     referenceY;   // Row of reference point, maybe outside view
+   private int        referenceDepth;
+   private boolean    series = true; // True if using series approximation
+   private int        seriesSkip;   // Iterations skipped by series
+   private double     sar;          // Series coefficient A, real part
+   private double     sai;          // Series coefficient A, imaginary part
+   private double     sbr;          // Series coefficient B, real part
+   private double     sbi;          // Series coefficient B, imaginary part
+   private double     scr;          // Series coefficient C, real part
+   private double     sci;          // Series coefficient C, imaginary part
+   private boolean    bilinear = true;   // True if using bilinear approximation
+   private BilinearTable bilinearTable;
+   private LongAdder  bilinearSkips = new LongAdder();
+   private boolean    rebase = true; // True if rebasing when |z| < |d|
+   private boolean[]  glitched;     // Points still glitched, row by row
+   private LongAdder  glitches = new LongAdder();
+   private LongAdder  corrected = new LongAdder();
+   private TileRenderer.CancelToken cancelToken;   // Stops reference work, or null
+
+   public String getName() {
+      return "perturbation";
+   }
+
+   /**
+    * Describe the kernel, with the length of the reference orbit and the number of
+    * iterations skipped by series approximation.
+    */
+   public String describe() {
+      return getName() + " (" + (extended ? "floatexp deltas, " : "")
+         + "reference orbit " + orbitLength + ", series skip "
+         + seriesSkip + ", bilinear skips " + bilinearSkips.sum() + ", glitches "
+         + getGlitches() + ", " + getGlitchesLeft() + " left)";
+   }
+
+   /**
+    * Turn bilinear approximation on or off.
+    */
+   public void setBilinear(boolean bilinear) {
+      this.bilinear = bilinear;
+   }
+
+   /**
+    * Get the total number of iterations skipped by bilinear approximation since the
+    * counts were reset.
+    */
+   public long getBilinearSkips() {
+      return bilinearSkips.sum();
+   }
+
+   public void resetCounts() {
+      super.resetCounts();
+      bilinearSkips.reset();
+      glitches.reset();
+      corrected.reset();
+
+      if (glitched != null) {
+         Arrays.fill(glitched, false);
+      }
+   }
+
+   /**
+    * Turn rebasing on or off. With rebasing off, points are only rebased when the
+    * reference orbit runs out, and more of them glitch and have to be corrected.
+    */
+   public void setRebase(boolean rebase) {
+      this.rebase = rebase;
+   }
+
+   /**
+    * Get the number of points that glitched since the counts were reset.
+    */
+   public long getGlitches() {
+      return glitches.sum();
+   }
+
+   /**
+    * Get the number of points that glitched and have not been corrected.
+    */
+   public long getGlitchesLeft() {
+      return glitches.sum() - corrected.sum();
+   }
+
+   /**
+    * Return true if the point at the given cartesian coordinates glitched and has not
+    * been corrected.
+    */
+   public boolean isGlitched(int x, int y) {
+      return glitched[(y * imageWidth) + x];
+   }
+
+   /**
+    * Turn series approximation on or off.
+    */
+   public void setSeries(boolean series) {
+      this.series = series;
+   }
+
+   /**
+    * Get the number of iterations skipped by series approximation for the current
+    * view.
+    */
+   public int getSeriesSkip() {
+      return seriesSkip;
+   }
+
+   /**
+    * Set the token that stops the reference orbits, the series and the bilinear table
+    * from being worked out when it is cancelled, or null for none. A view whose
+    * reference work was stopped must not be rendered; it is worked out again when
+    * it is next set.
+    */
+   public void setCancelToken(TileRenderer.CancelToken cancelToken) {
+      this.cancelToken = cancelToken;
+   }
+
+   private boolean isCancelled() {
+      return cancelToken != null && cancelToken.isCancelled();
+   }
+
+   /**
+    * Fix the reference point for every view from now on, even where it is outside
+    * the view, or set null to use the center of each view. Views that share a
+    * reference point share its orbit; the strips of an image should share the center
+    * of the whole image.
+    */
+   public void setReference(BigDecimal cr, BigDecimal ci) {
+      fixedCr = cr;
+      fixedCi = ci;
+   }
+
+   /**
+    * Set the view, and calculate the reference orbit at its center (or the fixed
+    * reference point) unless it is the same as last time.
+    */
+   public void setView(
+      BigDecimal ar, BigDecimal ai, BigDecimal br, BigDecimal bi,
+      int imageWidth, int imageHeight, int maxDepth)
+   {
+      super.setView(ar, ai, br, bi, imageWidth, imageHeight, maxDepth);
+
+      mc = mathContext(ar, br, imageWidth);
+
+      BigDecimal  two = BigDecimal.valueOf(2);
+      BigDecimal  cr;
+      BigDecimal  ci;
+
+      if (fixedCr != null) {
+         cr = fixedCr.round(mc);
+         ci = fixedCi.round(mc);
+         referenceX = cr.subtract(ar).divide(br.subtract(ar), MathContext.DECIMAL64)
+            .doubleValue() * imageWidth;
+         referenceY = ci.subtract(ai).divide(bi.subtract(ai), MathContext.DECIMAL64)
+            .doubleValue() * imageHeight;
+      } else {
+         cr = ar.add(br).divide(two, mc);
+         ci = ai.add(bi).divide(two, mc);
+         referenceX = imageWidth / 2.0;
+         referenceY = imageHeight / 2.0;
+      }
+
+      dx = br.subtract(ar).doubleValue() / imageWidth;
+      dy = bi.subtract(ai).doubleValue() / imageHeight;
+      dxExp = FloatExp.valueOf(br.subtract(ar)).divide(imageWidth);
+      dyExp = FloatExp.valueOf(bi.subtract(ai)).divide(imageHeight);
+      extended = Math.min(dxExp.exponent, dyExp.exponent) < DOUBLE_EXPONENT;
+
+      if (glitched == null || glitched.length != imageWidth * imageHeight) {
+         glitched = new boolean[imageWidth * imageHeight];
+      }
+
+      seriesSkip = 0;
+      bilinearTable = null;
+
+      if (! (cr.equals(referenceCr) && ci.equals(referenceCi) && maxDepth == referenceDepth)) {
+         Orbit orbit = calculateOrbit(cr, ci);
+
+         if (orbit == null) {
+            referenceCr = null;
+            return;
+         }
+
+         zrs = orbit.zrs;
+         zis = orbit.zis;
+         orbitLength = orbit.length;
+         referenceCr = cr;
+         referenceCi = ci;
+         referenceDepth = maxDepth;
+      }
+
+      if (series && ! extended) {
+         calculateSeries();
+      }
+
+      // Build the bilinear table for the largest dc in the view.
+
+      if (bilinear) {
+         bilinearTable = new BilinearTable(
+            zrs, zis, orbitLength,
+            Math.hypot(
+               Math.max(referenceX, imageWidth - referenceX) * dx,
+               Math.max(referenceY, imageHeight - referenceY) * dy),
+            cancelToken);
+
+         if (isCancelled()) {
+            bilinearTable = null;
+         }
+      }
+   }
+
+   /**
+    * Get the number of iterations before the reference orbit escaped (the maximum
+    * depth if it didn't).
+    */
+   public int getOrbitLength() {
+      return orbitLength;
+   }
+
+   /**
+    * Calculate the reference orbit of the given point with the view's precision, or
+    * return null if the cancel token is cancelled first.
+    */
+   private Orbit calculateOrbit(BigDecimal cr, BigDecimal ci) {
+      BigDecimal zr = BigDecimal.ZERO;
+      BigDecimal zi = BigDecimal.ZERO;
+      BigDecimal four = BigDecimal.valueOf(4);
+      double[]   zrs = new double[maxDepth + 1];
+      double[]   zis = new double[maxDepth + 1];
+      int        n;
+
+      for (n = 0; n < maxDepth; n ++) {
+         if (n % CANCEL_CHECK == 0 && isCancelled()) {
+            return null;
+         }
+
+         BigDecimal zr2 = zr.multiply(zr, mc);
+         BigDecimal zi2 = zi.multiply(zi, mc);
+
+         zi = zr.multiply(zi, mc).multiply(BigDecimal.valueOf(2)).add(ci, mc);
+         zr = zr2.subtract(zi2, mc).add(cr, mc);
+
+         // Exact zeros (on the axes) keep the scale of the numbers they came from,
+         // which would otherwise grow without limit.
+
+         if (zr.signum() == 0) {
+            zr = BigDecimal.ZERO;
+         }
+
+         if (zi.signum() == 0) {
+            zi = BigDecimal.ZERO;
+         }
+         zrs[n + 1] = zr.doubleValue();
+         zis[n + 1] = zi.doubleValue();
+
+         if (zr.multiply(zr, mc).add(zi.multiply(zi, mc)).compareTo(four) > 0) {
+            n ++;
+            break;
+         }
+      }
+
+      return new Orbit(zrs, zis, n);
+   }
+
+   /**
+    * Reference orbit, rounded to doubles.
+    */
+   private static class Orbit {
+      double[] zrs;     // Real parts
+      double[] zis;     // Imaginary parts
+      int      length;  // Iterations before it escaped
+
+      Orbit(double[] zrs, double[] zis, int length) {
+         this.zrs = zrs;
+         this.zis = zis;
+         this.length = length;
+      }
+   }
+
+   /**
+    * Calculate the series coefficients for as many iterations as agree with the probe
+    * points, and set the series skip.
+    */
+   private void calculateSeries() {
+      double   ar2 = 0.0, ai2 = 0.0, br2 = 0.0, bi2 = 0.0, cr2 = 0.0, ci2 = 0.0;
+      double   x0 = -referenceX * dx;                      // Edges and middle of view
+      double   xm = ((imageWidth / 2.0) - referenceX) * dx;
+      double   x1 = (imageWidth - referenceX) * dx;
+      double   y0 = -referenceY * dy;
+      double   ym = ((imageHeight / 2.0) - referenceY) * dy;
+      double   y1 = (imageHeight - referenceY) * dy;
+      double[] pcr = {x0, xm, x1, x0, x1, x0, xm, x1};   // probe dc, real parts
+      double[] pci = {y0, y0, y0, ym, ym, y1, y1, y1};   // probe dc, imaginary parts
+      double[] pdr = new double[pcr.length];                 // probe delta, real parts
+      double[] pdi = new double[pcr.length];                 // probe delta, imaginary parts
+
+      sar = sai = sbr = sbi = scr = sci = 0.0;
+
+      for (int n = 0; n < orbitLength - 1; n ++) {
+         if (n % CANCEL_CHECK == 0 && isCancelled()) {
+            return;
+         }
+
+         double zr = zrs[n];
+         double zi = zis[n];
+
+         // A = 2ZA + 1, B = 2ZB + A^2, C = 2ZC + 2AB
+
+         ar2 = (2.0 * ((zr * sar) - (zi * sai))) + 1.0;
+         ai2 = 2.0 * ((zr * sai) + (zi * sar));
+         br2 = (2.0 * ((zr * sbr) - (zi * sbi))) + ((sar * sar) - (sai * sai));
+         bi2 = (2.0 * ((zr * sbi) + (zi * sbr))) + (2.0 * sar * sai);
+         cr2 = (2.0 * ((zr * scr) - (zi * sci))) + (2.0 * ((sar * sbr) - (sai * sbi)));
+         ci2 = (2.0 * ((zr * sci) + (zi * scr))) + (2.0 * ((sar * sbi) + (sai * sbr)));
+
+         // Iterate the probes and check the new coefficients against them.
+
+         for (int p = 0; p < pcr.length; p ++) {
+            double dr = pdr[p];
+            double di = pdi[p];
+
+            pdr[p] = (2.0 * ((zr * dr) - (zi * di))) + ((dr * dr) - (di * di)) + pcr[p];
+            pdi[p] = (2.0 * ((zr * di) + (zi * dr))) + (2.0 * dr * di) + pci[p];
+
+            double er = pdr[p] - seriesReal(pcr[p], pci[p], ar2, ai2, br2, bi2, cr2, ci2);
+            double ei = pdi[p] - seriesImaginary(pcr[p], pci[p], ar2, ai2, br2, bi2, cr2, ci2);
+            double size = (pdr[p] * pdr[p]) + (pdi[p] * pdi[p]);
+            double zr2 = zrs[n + 1] + pdr[p];
+            double zi2 = zis[n + 1] + pdi[p];
+
+            if (! ((er * er) + (ei * ei) <= SERIES_TOLERANCE * SERIES_TOLERANCE * size)
+               || ((zr2 * zr2) + (zi2 * zi2)) > 4.0)
+            {
+               return;
+            }
+         }
+
+         sar = ar2;
+         sai = ai2;
+         sbr = br2;
+         sbi = bi2;
+         scr = cr2;
+         sci = ci2;
+         seriesSkip = n + 1;
+      }
+   }
+
+   /**
+    * Real part of A * dc + B * dc^2 + C * dc^3.
+    */
+   private static double seriesReal(
+      double dcr, double dci,
+      double ar, double ai, double br, double bi, double cr, double ci)
+   {
+      double d2r = (dcr * dcr) - (dci * dci);
+      double d2i = 2.0 * dcr * dci;
+      double d3r = (d2r * dcr) - (d2i * dci);
+      double d3i = (d2r * dci) + (d2i * dcr);
+
+      return ((ar * dcr) - (ai * dci)) + ((br * d2r) - (bi * d2i)) + ((cr * d3r) - (ci * d3i));
+   }
+
+   /**
+    * Imaginary part of A * dc + B * dc^2 + C * dc^3.
+    */
+   private static double seriesImaginary(
+      double dcr, double dci,
+      double ar, double ai, double br, double bi, double cr, double ci)
+   {
+      double d2r = (dcr * dcr) - (dci * dci);
+      double d2i = 2.0 * dcr * dci;
+      double d3r = (d2r * dcr) - (d2i * dci);
+      double d3i = (d2r * dci) + (d2i * dcr);
+
+      return ((ar * dci) + (ai * dcr)) + ((br * d2i) + (bi * d2r)) + ((cr * d3i) + (ci * d3r));
+   }
+
+   /**
+    * Calculate the depth of the point at the given cartesian coordinates, and mark it
+    * if it glitched.
+    */
+   public int depth(int x, int y) {
+      int d;
+
+      if (extended) {
+         d = iterate(
+            zrs, zis, orbitLength, bilinearTable,
+            dxExp.multiply(x - referenceX), dyExp.multiply(y - referenceY));
+      } else {
+         double dcr = (x - referenceX) * dx;
+         double dci = (y - referenceY) * dy;
+         double dr = 0.0;
+         double di = 0.0;
+
+         // Start from the series approximation, if any.
+
+         if (seriesSkip > 0) {
+            dr = seriesReal(dcr, dci, sar, sai, sbr, sbi, scr, sci);
+            di = seriesImaginary(dcr, dci, sar, sai, sbr, sbi, scr, sci);
+         }
+
+         d = iterate(zrs, zis, orbitLength, bilinearTable, seriesSkip, dr, di, dcr, dci);
+      }
+
+      if (d < 0) {
+         int i = (y * imageWidth) + x;
+
+         if (! glitched[i]) {
+            glitched[i] = true;
+            glitches.increment();
+         }
+
+         d = -d - 1;
+      }
+
+      return d;
+   }
+
+   /**
+    * Iterate a point whose delta dc from the reference point of the given orbit is
+    * too small for doubles, with a floatexp delta, until the delta fits in a double,
+    * and then go on in doubles. Returns the depth, or -1 - depth if the point
+    * glitched.
+    *
+    * The delta is kept as two double mantissas with one shared exponent, in local
+    * variables, so the loop doesn't allocate.
+    */
+   private int iterate(
+      double[] zrs, double[] zis, int orbitLength, BilinearTable table,
+      FloatExp dcr, FloatExp dci)
+   {
+      int    e = exponentOf(dcr, dci);   // exponent of d and dc
+      double cr = Math.scalb(dcr.mantissa, dcr.exponent - e);
+      double ci = Math.scalb(dci.mantissa, dci.exponent - e);
+      double dr = 0.0;     // delta, real part, times 2^-e
+      double di = 0.0;     // delta, imaginary part, times 2^-e
+      double dr2;
+      double zr;
+      double zi;
+      int    n = 0;
+      int    shift;
+
+      while (n < maxDepth && e < DOUBLE_EXPONENT) {
+         // d = 2 * Z * d + d^2 + dc, where d^2 is scaled by 2^e and dc by 2^(ec - e)
+
+         dr2 = (2.0 * ((zrs[n] * dr) - (zis[n] * di)))
+            + Math.scalb((dr * dr) - (di * di), e) + cr;
+         di = (2.0 * ((zrs[n] * di) + (zis[n] * dr))) + Math.scalb(2.0 * dr * di, e) + ci;
+         dr = dr2;
+         n ++;
+
+         // Keep the larger mantissa between 0.5 and 1, and dc scaled to match.
+
+         shift = Math.getExponent(Math.max(Math.abs(dr), Math.abs(di))) + 1;
+
+         if (shift != 0 && (dr != 0.0 || di != 0.0)) {
+            dr = Math.scalb(dr, -shift);
+            di = Math.scalb(di, -shift);
+            cr = Math.scalb(cr, -shift);
+            ci = Math.scalb(ci, -shift);
+            e += shift;
+         }
+
+         // z is Z to double precision, so the point escapes along with the reference
+         // orbit.
+
+         zr = zrs[n] + Math.scalb(dr, e);
+         zi = zis[n] + Math.scalb(di, e);
+
+         if (((zr * zr) + (zi * zi)) > 4.0) {
+            return n - 1;
+         }
+      }
+
+      if (n >= maxDepth) {
+         return maxDepth;
+      }
+
+      return iterate(
+         zrs, zis, orbitLength, table, n,
+         Math.scalb(dr, e), Math.scalb(di, e), Math.scalb(cr, e), Math.scalb(ci, e));
+   }
+
+   /**
+    * Return the larger exponent of the given components, ignoring a zero component,
+    * whose exponent is 0 whatever the size of the other.
+    */
+   private static int exponentOf(FloatExp r, FloatExp i) {
+      if (r.mantissa == 0.0) {
+         return i.exponent;
+      }
+
+      if (i.mantissa == 0.0) {
+         return r.exponent;
+      }
+
+      return Math.max(r.exponent, i.exponent);
+   }
+
+   /**
+    * Iterate a point, as the delta dc from the reference point of the given orbit,
+    * starting at iteration n with the delta (dr, di), and return its depth. If the
+    * point glitched, return -1 - depth instead.
+    */
+   private int iterate(
+      double[] zrs, double[] zis, int orbitLength, BilinearTable table,
+      int n, double dr, double di, double dcr, double dci)
+   {
+      double dr2;
+      double zr;
+      double zi;
+      double z2;
+      int    d = n;
+      int    skipped = 0;      // iterations skipped by bilinear approximation
+      int    steps;            // iterations done by this step
+      boolean glitch = false;
+
+      while (d < maxDepth) {
+         int k = (table == null ? -1 : table.find(n, (dr * dr) + (di * di), maxDepth - d));
+
+         if (k > 0) {
+            // d = A * d + B * dc, for 2^k iterations
+
+            dr2 = ((table.ar(k, n) * dr) - (table.ai(k, n) * di))
+               + ((table.br(k, n) * dcr) - (table.bi(k, n) * dci));
+            di = ((table.ar(k, n) * di) + (table.ai(k, n) * dr))
+               + ((table.br(k, n) * dci) + (table.bi(k, n) * dcr));
+            dr = dr2;
+            steps = 1 << k;
+            skipped += steps;
+         } else {
+            // d = 2 * Z * d + d^2 + dc
+
+            dr2 = (2.0 * ((zrs[n] * dr) - (zis[n] * di))) + ((dr * dr) - (di * di)) + dcr;
+            di = (2.0 * ((zrs[n] * di) + (zis[n] * dr))) + (2.0 * dr * di) + dci;
+            dr = dr2;
+            steps = 1;
+         }
+
+         n += steps;
+         d += steps;
+
+         zr = zrs[n] + dr;
+         zi = zis[n] + di;
+         z2 = (zr * zr) + (zi * zi);
+
+         if (z2 > 4.0) {
+            d --;
+            break;
+         }
+
+         // If z has lost its precision against Z, give up on the point.
+
+         if (z2 < GLITCH_TOLERANCE * ((zrs[n] * zrs[n]) + (zis[n] * zis[n]))) {
+            glitch = true;
+            break;
+         }
+
+         // If the reference orbit has run out, or z is closer to 0 than to Z, rebase
+         // to its start.
+
+         if (n == orbitLength || (rebase && z2 < (dr * dr) + (di * di))) {
+            dr = zr;
+            di = zi;
+            n = 0;
+         }
+      }
+
+      if (skipped > 0) {
+         bilinearSkips.add(skipped);
+      }
+
+      return (glitch ? -1 - d : d);
+   }
+
+   //------------------------------------------------------------------------------------
+   // Glitch correction
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Correct a batch of glitched points, given by their cartesian coordinates, in the
+    * given iteration buffer. A new reference orbit is calculated at the point nearest
+    * the middle of the batch, and every point of the batch is iterated again against
+    * it. Points that glitch again stay marked. Returns the number that were
+    * corrected.
+    */
+   public int correct(int[] xs, int[] ys, int count, IterationBuffer depths) {
+      if (count == 0) {
+         return 0;
+      }
+
+      // Find the point nearest the middle of the batch.
+
+      double mx = 0.0;
+      double my = 0.0;
+      int    r = 0;
+
+      for (int p = 0; p < count; p ++) {
+         mx += xs[p];
+         my += ys[p];
+      }
+
+      mx /= count;
+      my /= count;
+
+      for (int p = 1; p < count; p ++) {
+         if (Math.hypot(xs[p] - mx, ys[p] - my) < Math.hypot(xs[r] - mx, ys[r] - my)) {
+            r = p;
+         }
+      }
+
+      // Calculate the new reference orbit.
+
+      FloatExp rcr = dxExp.multiply(xs[r] - referenceX);
+      FloatExp rci = dyExp.multiply(ys[r] - referenceY);
+      Orbit    orbit = calculateOrbit(
+         referenceCr.add(rcr.toBigDecimal(mc), mc), referenceCi.add(rci.toBigDecimal(mc), mc));
+      int      fixed = 0;
+
+      if (orbit == null) {
+         return 0;
+      }
+
+      // Iterate the batch against it.
+
+      for (int p = 0; p < count; p ++) {
+         FloatExp dcr = dxExp.multiply(xs[p] - referenceX).subtract(rcr);
+         FloatExp dci = dyExp.multiply(ys[p] - referenceY).subtract(rci);
+         int      i = (ys[p] * imageWidth) + xs[p];
+         int      d;
+
+         if (extended) {
+            d = iterate(orbit.zrs, orbit.zis, orbit.length, null, dcr, dci);
+         } else {
+            d = iterate(
+               orbit.zrs, orbit.zis, orbit.length, null, 0,
+               0.0, 0.0, dcr.doubleValue(), dci.doubleValue());
+         }
+
+         if (d >= 0) {
+            depths.set(i, d);
+            glitched[i] = false;
+            fixed ++;
+         }
+      }
+
+      corrected.add(fixed);
+      return fixed;
+   }
+}
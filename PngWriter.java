@@ -0,0 +1,151 @@
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * <p>Writes an 8-bit RGB PNG image a row at a time, top to bottom, so images far
+ * larger than memory can be written as they are rendered (see MandelBatch). Only
+ * one row and one compressed chunk are held at a time.</p>
+ *
+ * <p>Each row is filtered with the Sub filter (each byte less the byte of the pixel to
+ * its left), which suits the smooth bands of the plots, and deflated as part of a
+ * single zlib stream that is cut into IDAT chunks of CHUNK_SIZE bytes.</p>
+ */
+public class PngWriter {
+   private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+   private static final int    CHUNK_SIZE = 1 << 16;   // Bytes of IDAT data per chunk
+
+   private DataOutputStream     out;
+   private ChunkStream          chunks;   // Cuts compressed data into IDAT chunks
+   private DeflaterOutputStream data;     // Compresses rows into chunks
+   private Deflater             deflater;
+   private byte[]               row;      // Filter type and filtered bytes of a row
+   private int                  width;
+   private int                  rowsLeft;
+
+   //------------------------------------------------------------------------------------
+   // Constructors
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Start an image of the given size on the given stream, and write its header.
+    */
+   public PngWriter(OutputStream out, int width, int height) throws IOException {
+      this.out = new DataOutputStream(new BufferedOutputStream(out, CHUNK_SIZE));
+      this.width = width;
+      rowsLeft = height;
+      row = new byte[1 + (3 * width)];
+      row[0] = 1;   // Sub filter
+
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      DataOutputStream      ihdr = new DataOutputStream(header);
+
+      ihdr.writeInt(width);
+      ihdr.writeInt(height);
+      ihdr.writeByte(8);   // Bits per sample
+      ihdr.writeByte(2);   // RGB
+      ihdr.writeByte(0);   // Deflate
+      ihdr.writeByte(0);   // Adaptive filtering
+      ihdr.writeByte(0);   // Not interlaced
+
+      this.out.write(SIGNATURE);
+      writeChunk("IHDR", header.toByteArray(), header.size());
+
+      deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+      chunks = new ChunkStream();
+      data = new DeflaterOutputStream(chunks, deflater, CHUNK_SIZE);
+   }
+
+   //------------------------------------------------------------------------------------
+   // Writing
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Write the next row of the image from the given array of RGB pixels, starting at
+    * the given offset.
+    */
+   public void writeRow(int[] pixels, int offset) throws IOException {
+      if (rowsLeft == 0) {
+         throw new IOException("Too many rows.");
+      }
+
+      int last = 0;   // RGB of the pixel to the left
+
+      for (int x = 0, j = 1; x < width; x ++) {
+         int rgb = pixels[offset + x];
+
+         row[j ++] = (byte) ((rgb >> 16) - (last >> 16));
+         row[j ++] = (byte) ((rgb >> 8) - (last >> 8));
+         row[j ++] = (byte) (rgb - last);
+         last = rgb;
+      }
+
+      data.write(row);
+      rowsLeft --;
+   }
+
+   /**
+    * Finish the image, which must have all its rows, and close the stream.
+    */
+   public void close() throws IOException {
+      try {
+         if (rowsLeft > 0) {
+            throw new IOException(rowsLeft + " rows missing.");
+         }
+
+         data.finish();
+         chunks.flush();
+         writeChunk("IEND", new byte[0], 0);
+      } finally {
+         deflater.end();
+         out.close();
+      }
+   }
+
+   /**
+    * Write a chunk of the given type with the given data and its CRC.
+    */
+   private void writeChunk(String type, byte[] bytes, int length) throws IOException {
+      CRC32 crc = new CRC32();
+
+      crc.update(type.getBytes("US-ASCII"));
+      crc.update(bytes, 0, length);
+      out.writeInt(length);
+      out.writeBytes(type);
+      out.write(bytes, 0, length);
+      out.writeInt((int) crc.getValue());
+   }
+
+   /**
+    * Stream that collects compressed data and writes it out in IDAT chunks.
+    */
+   private class ChunkStream extends OutputStream {
+      private byte[] buffer = new byte[CHUNK_SIZE];
+      private int    count;
+
+      public void write(int b) throws IOException {
+         write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      public void write(byte[] b, int offset, int length) throws IOException {
+         while (length > 0) {
+            int n = Math.min(length, CHUNK_SIZE - count);
+
+            System.arraycopy(b, offset, buffer, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+
+            if (count == CHUNK_SIZE) {
+               flush();
+            }
+         }
+      }
+
+      public void flush() throws IOException {
+         if (count > 0) {
+            writeChunk("IDAT", buffer, count);
+            count = 0;
+         }
+      }
+   }
+}
@@ -0,0 +1,109 @@
+/**
+ * <p>The plain escape-time kernel: iterates one point at a time in doubles.</p>
+ *
+ * <p>If periodicity checking is on, the orbit of each point is compared with a saved
+ * orbit point, which is moved forward at doubling intervals (Brent's method). An orbit
+ * that comes back to the saved point (within the period tolerance) is in a cycle and
+ * never escapes, so the point is given the maximum depth. With a tolerance of 0, the
+ * orbit must repeat exactly, so the depths are the same as without checking.</p>
+ */
+public class ScalarKernel extends Kernel {
+   public String getName() {
+      return "scalar";
+   }
+
+   /**
+    * Calculate the depth of the point at the given cartesian coordinates.
+    */
+   public int depth(int x, int y) {
+      return depth(realPart(x), imaginaryPart(y));
+   }
+
+   /**
+    * Calculate the depths of a row, working out the imaginary part only once.
+    */
+   public void row(int y, int left, int right, int step, IterationBuffer depths) {
+      double ci = imaginaryPart(y);
+      int    i = (y * imageWidth) + left;
+
+      for (int x = left; x < right; x += step, i += step) {
+         depths.set(i, depth(realPart(x), ci));
+      }
+   }
+
+   /**
+    * Iterate the Mandelbrot equation for the given point and return its depth.
+    */
+   protected int depth(double cr, double ci) {
+      double zr = 0.0;
+      double zi = 0.0;
+      double zr2 = 0.0;
+      int    d;
+
+      // If the point is inside the main cardioid or the period-2 bulb, don't bother
+      // iterating.
+
+      if (inSet(cr, ci)) {
+         return maxDepth;
+      }
+
+      if (periodicity) {
+         return periodicDepth(cr, ci);
+      }
+
+      for (d = 0; d < maxDepth; d ++) {
+         zr2 = ((zr * zr) - (zi * zi)) + cr;
+         zi = (2.0 * zr * zi) + ci;
+         zr = zr2;
+
+         if (((zr * zr) + (zi * zi)) > 4.0) {
+            break;
+         }
+      }
+
+      return d;
+   }
+
+   /**
+    * Iterate the Mandelbrot equation for the given point, checking the orbit for
+    * cycles, and return its depth.
+    */
+   private int periodicDepth(double cr, double ci) {
+      double zr = 0.0;
+      double zi = 0.0;
+      double zr2 = 0.0;
+      double sr = 0.0;     // saved orbit point, real part
+      double si = 0.0;     // saved orbit point, imaginary part
+      int    steps = 0;    // steps since orbit point was saved
+      int    interval = 8; // steps between saves
+      int    d;
+
+      for (d = 0; d < maxDepth; d ++) {
+         zr2 = ((zr * zr) - (zi * zi)) + cr;
+         zi = (2.0 * zr * zi) + ci;
+         zr = zr2;
+
+         if (((zr * zr) + (zi * zi)) > 4.0) {
+            break;
+         }
+
+         // If the orbit is back at the saved point, it is in a cycle.
+
+         if (Math.abs(zr - sr) <= periodTolerance && Math.abs(zi - si) <= periodTolerance) {
+            periodSkips.increment();
+            return maxDepth;
+         }
+
+         // Move the saved point forward, doubling the interval each time.
+
+         if (++ steps == interval) {
+            sr = zr;
+            si = zi;
+            steps = 0;
+            interval <<= 1;
+         }
+      }
+
+      return d;
+   }
+}
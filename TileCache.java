@@ -0,0 +1,320 @@
+import java.math.*;
+import java.util.*;
+
+/**
+ * <p>Keeps the depths of rendered tiles in memory, so that views that have been seen
+ * before can be put together again without recalculating them. Tiles are kept up to
+ * a budget in bytes, and the least recently used tiles are dropped to make room.</p>
+ *
+ * <p>Tiles are placed on a fixed grid over the complex plane. At zoom level z, the
+ * distance between points is SPACING / 2^z, and the grid starts at (ORIGIN_R,
+ * ORIGIN_I), the top-left corner of the default view, so the default view is zoom
+ * level 0. A view lines up with the grid if its points are the same distance apart
+ * across and down, that distance is the spacing of a zoom level, and its top-left
+ * corner is a whole number of tiles from the origin (see align). Only views that line
+ * up can use the cache, such as the default view and the tiles of the tile server
+ * (see TileServer); other views are rendered as usual.</p>
+ *
+ * <p>Each tile is keyed by its zoom level, its position on the grid (in tiles, which
+ * may be any size at great zooms), its size, the maximum depth, and the name of the
+ * kernel that calculated it, with the engine and settings its depths depend on. The
+ * cache can be used from several threads at once.</p>
+ *
+ * <p>A disk cache can be set behind this one (see DiskTileCache). Tiles that aren't
+ * in memory are then looked for on disk, and kept in memory if found, and every tile
+ * put in this cache is written to disk as well.</p>
+ */
+public class TileCache {
+   public static final BigDecimal ORIGIN_R = new BigDecimal("-2.5");
+   public static final BigDecimal ORIGIN_I = new BigDecimal("1.5");
+   public static final BigDecimal SPACING = new BigDecimal("0.00625");   // At zoom level 0
+
+   private static final BigDecimal HALF = new BigDecimal("0.5");
+   private static final double     LOG2 = Math.log(2.0);
+
+   private LinkedHashMap<Key, IterationBuffer> tiles =
+      new LinkedHashMap<Key, IterationBuffer>(256, 0.75f, true);   // In access order
+   private long budget;   // Bytes of depths to keep
+   private long bytes;    // Bytes of depths kept
+   private long hits;
+   private long diskHits;   // Hits that were read from disk
+   private long misses;
+   private DiskTileCache disk;
+
+   //------------------------------------------------------------------------------------
+   // Constructors
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Create a cache that keeps up to the given number of bytes of depths.
+    */
+   public TileCache(long budget) {
+      this.budget = budget;
+   }
+
+   //------------------------------------------------------------------------------------
+   // Caching
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Set the disk cache behind this one, or null for none.
+    */
+   public synchronized void setDiskCache(DiskTileCache disk) {
+      this.disk = disk;
+   }
+
+   public synchronized DiskTileCache getDiskCache() {
+      return disk;
+   }
+
+   /**
+    * Get the tile with the given key, from memory or else from disk, or null if it
+    * isn't kept. The disk is read without holding the lock.
+    */
+   public IterationBuffer get(Key key) {
+      IterationBuffer tile;
+      DiskTileCache   disk;
+
+      synchronized (this) {
+         tile = tiles.get(key);
+         disk = this.disk;
+
+         if (tile != null) {
+            hits ++;
+            return tile;
+         }
+
+         if (disk == null) {
+            misses ++;
+            return null;
+         }
+      }
+
+      tile = disk.get(key);
+
+      synchronized (this) {
+         if (tile != null) {
+            hits ++;
+            diskHits ++;
+            keep(key, tile);
+         } else {
+            misses ++;
+         }
+      }
+
+      return tile;
+   }
+
+   /**
+    * Keep the given tile under the given key, and write it to disk, if there is a
+    * disk cache. The tile must not be changed afterwards.
+    */
+   public void put(Key key, IterationBuffer tile) {
+      DiskTileCache disk;
+
+      synchronized (this) {
+         keep(key, tile);
+         disk = this.disk;
+      }
+
+      if (disk != null) {
+         disk.put(key, tile);
+      }
+   }
+
+   /**
+    * Keep the given tile in memory, dropping the least recently used tiles if the
+    * budget is exceeded.
+    */
+   private void keep(Key key, IterationBuffer tile) {
+      IterationBuffer old = tiles.put(key, tile);
+
+      bytes += sizeOf(tile) - (old != null ? sizeOf(old) : 0);
+
+      Iterator<IterationBuffer> i = tiles.values().iterator();
+
+      while (bytes > budget && i.hasNext()) {
+         bytes -= sizeOf(i.next());
+         i.remove();
+      }
+   }
+
+   /**
+    * Drop every tile kept in memory.
+    */
+   public synchronized void clear() {
+      tiles.clear();
+      bytes = 0;
+   }
+
+   public synchronized long getHits() {
+      return hits;
+   }
+
+   public synchronized long getDiskHits() {
+      return diskHits;
+   }
+
+   public synchronized long getMisses() {
+      return misses;
+   }
+
+   public synchronized long getBytes() {
+      return bytes;
+   }
+
+   public synchronized int getTiles() {
+      return tiles.size();
+   }
+
+   /**
+    * Return the number of bytes of depths in the given tile.
+    */
+   static long sizeOf(IterationBuffer tile) {
+      int maxDepth = tile.getMaxDepth();
+      int size = (maxDepth <= 0xff ? 1 : (maxDepth <= 0xffff ? 2 : 4));
+
+      return (long) tile.getWidth() * tile.getHeight() * size;
+   }
+
+   //------------------------------------------------------------------------------------
+   // Grid
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Return the distance between points at the given zoom level.
+    */
+   public static BigDecimal spacing(int zoom) {
+      return (zoom >= 0
+         ? SPACING.multiply(HALF.pow(zoom))
+         : SPACING.multiply(BigDecimal.valueOf(2).pow(-zoom)));
+   }
+
+   /**
+    * Return the nearest zoom level for a view of the given width in points and in
+    * the complex plane, which may be too small for a double.
+    */
+   private static int zoom(BigDecimal span, int width) {
+      FloatExp f = FloatExp.valueOf(span);
+      double   log = (Math.log(f.mantissa) / LOG2) + f.exponent;
+
+      return (int) Math.round((Math.log(SPACING.doubleValue() * width) / LOG2) - log);
+   }
+
+   /**
+    * Return the key of the top-left tile of the given view, with the given maximum
+    * depth and kernel name, or null if the view doesn't line up with the grid of
+    * tiles of the given size.
+    */
+   public static Key align(
+      BigDecimal ar, BigDecimal ai, BigDecimal br, BigDecimal bi,
+      int width, int height, int tileSize, int maxDepth, String kernel)
+   {
+      if (br.compareTo(ar) <= 0) {
+         return null;
+      }
+
+      int        zoom = zoom(br.subtract(ar), width);
+      BigDecimal spacing = spacing(zoom);
+      BigDecimal tile = spacing.multiply(BigDecimal.valueOf(tileSize));
+
+      if (spacing.multiply(BigDecimal.valueOf(width)).compareTo(br.subtract(ar)) != 0
+         || spacing.multiply(BigDecimal.valueOf(height)).compareTo(ai.subtract(bi)) != 0)
+      {
+         return null;
+      }
+
+      BigDecimal[] x = ar.subtract(ORIGIN_R).divideAndRemainder(tile);
+      BigDecimal[] y = ORIGIN_I.subtract(ai).divideAndRemainder(tile);
+
+      if (x[1].signum() != 0 || y[1].signum() != 0) {
+         return null;
+      }
+
+      return new Key(
+         zoom, x[0].toBigIntegerExact(), y[0].toBigIntegerExact(), tileSize, maxDepth,
+         kernel);
+   }
+
+   //------------------------------------------------------------------------------------
+   // Key
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Key of a tile: zoom level, position on the grid in tiles (x across, y down),
+    * size (points across and down), maximum depth, and kernel name.
+    */
+   public static class Key {
+      private int        zoom;
+      private BigInteger x;
+      private BigInteger y;
+      private int        size;
+      private int        maxDepth;
+      private String     kernel;
+
+      public Key(
+         int zoom, BigInteger x, BigInteger y, int size, int maxDepth, String kernel)
+      {
+         this.zoom = zoom;
+         this.x = x;
+         this.y = y;
+         this.size = size;
+         this.maxDepth = maxDepth;
+         this.kernel = kernel;
+      }
+
+      /**
+       * Return the key of the tile the given number of tiles across and down from
+       * this one.
+       */
+      public Key offset(int across, int down) {
+         return new Key(
+            zoom, x.add(BigInteger.valueOf(across)), y.add(BigInteger.valueOf(down)),
+            size, maxDepth, kernel);
+      }
+
+      public int getZoom() {
+         return zoom;
+      }
+
+      public BigInteger getX() {
+         return x;
+      }
+
+      public BigInteger getY() {
+         return y;
+      }
+
+      public int getSize() {
+         return size;
+      }
+
+      public int getMaxDepth() {
+         return maxDepth;
+      }
+
+      public String getKernel() {
+         return kernel;
+      }
+
+      public boolean equals(Object o) {
+         if (! (o instanceof Key)) {
+            return false;
+         }
+
+         Key k = (Key) o;
+
+         return zoom == k.zoom && size == k.size && maxDepth == k.maxDepth
+            && x.equals(k.x) && y.equals(k.y) && kernel.equals(k.kernel);
+      }
+
+      public int hashCode() {
+         return ((((((zoom * 31) + x.hashCode()) * 31) + y.hashCode()) * 31 + size) * 31
+            + maxDepth) * 31 + kernel.hashCode();
+      }
+
+      public String toString() {
+         return zoom + "/" + x + "/" + y + "/" + size + "/" + maxDepth + "/" + kernel;
+      }
+   }
+}
@@ -0,0 +1,948 @@
+import java.math.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * <p>Renders the Mandelbrot set in square tiles on a fork/join pool. The image is cut
+ * into a grid of tiles, and the tile range is split in halves until each task holds a
+ * single tile, so idle workers can steal the larger halves from busy ones.</p>
+ *
+ * <p>The depth of each pixel is kept in an iteration buffer, and each tile is then
+ * colored straight into an array of RGB pixels (normally the data buffer of a
+ * TYPE_INT_RGB image). The tile listener is told as each tile is finished so that it
+ * can be drawn. The image can be colored again from the iteration buffer, without
+ * recalculating it, by calling recolor.</p>
+ *
+ * <p>The depths themselves are calculated by the kernel (see Kernel), which is given
+ * the view at the start of each render. Whole rows are handed to the kernel where
+ * possible, so that kernels that calculate several points at once can do so.</p>
+ *
+ * <p>The kernel is chosen for each view. If the kernel that was set works in doubles,
+ * views whose points are more than FLOAT_SPACING apart, relative to the size of the
+ * coordinates, are rendered in floats instead (see FloatKernel), unless that is
+ * turned off or the maximum depth is more than FLOAT_DEPTH, which floats can't
+ * count to; a float kernel that was set gives way to a double kernel at such depths
+ * too. When the distance between points gets smaller than about 1e-13 of the size
+ * of the coordinates, doubles can no longer tell neighboring points apart, so the
+ * fixed-point kernel is used instead of the kernel that was set, as long as the
+ * points are at least FIXED_SPACING apart and the view is within its range; then
+ * the double-double kernel; and below about 1e-28, where double-doubles run out
+ * too, the perturbation kernel. If the fixed-point kernel is set, for reproducible
+ * frames, the double-double kernel stands in for it on views it can't take.</p>
+ *
+ * <p>In progressive mode, the image is rendered in passes, first every fourth point
+ * of every fourth row (1/16 of the points), then every second point of every second
+ * row (1/4), then every point, each measured from the top-left corner of its tile.
+ * Each point calculated is copied over the block of points around it that haven't
+ * been calculated yet, so every pass gives a whole, if blocky, image, and each pass
+ * only calculates the points that the passes before it didn't. The tiles are colored
+ * and passed to the tile listener after every pass. The coarse passes calculate
+ * points by brute force; the last pass runs the engine that was set, which takes
+ * the points the pass before calculated from the iteration buffer instead of
+ * calculating them again.</p>
+ *
+ * <p>Points that the perturbation kernel finds to have glitched are corrected after
+ * the tiles are rendered, in batches of one tile each (see
+ * PerturbationKernel.correct), for up to GLITCH_PASSES passes. Each pass after the
+ * first cuts the batches in four again, so points that a reference couldn't correct
+ * get new references nearer them. Only the tiles that had glitches are colored
+ * again. The number of points that glitched, and the number left glitched after
+ * correcting, are kept for each render.</p>
+ *
+ * <p>If a tile cache is set (see TileCache), and the view lines up with its grid,
+ * the full tiles that it has are copied from it before rendering, and colored and
+ * passed to the tile listener straight away; the rest of the render skips them. The
+ * full tiles that were rendered are put in the cache afterwards. Tiles are cached
+ * under the name of the kernel along with the settings that the depths depend on
+ * (see kernelTag), so tiles rendered with other settings are never used.</p>
+ *
+ * <p>A render can be given a cancel token, which another thread can cancel to stop
+ * it. The token is checked before each tile and each row, so the workers stop soon
+ * after, and the render returns with the rest of the image left as it was. Tiles
+ * that were cut short are not colored.</p>
+ *
+ * <p>Each pixel is calculated with exactly the same arithmetic as the serial loop, so
+ * the output does not depend on the number of threads. With one thread, the tiles are
+ * rendered in order on the calling thread.</p>
+ *
+ * <p>The engine decides which pixels of a tile are calculated. The brute force engine
+ * calculates every one; the Mariani-Silver engine fills areas with a uniform border
+ * (see MarianiSilver); the boundary tracing engine traces the edges of each band and
+ * fills the inside (see BoundaryTracer). Any engine can be checked against brute
+ * force by calling validate after rendering. The time taken by the last render, and
+ * the number of points it actually calculated, are kept for comparing engines.</p>
+ */
+public class TileRenderer {
+   public static final int      BRUTE_FORCE = 0;
+   public static final int      MARIANI_SILVER = 1;
+   public static final int      BOUNDARY_TRACE = 2;
+   public static final String[] ENGINE_NAMES = {"brute", "mariani", "boundary"};
+
+   static final double         FLOAT_SPACING = 1e-4;     // Relative point spacing
+   private static final double DOUBLE_SPACING = 1e-13;
+   private static final double DEEP_SPACING = 1e-28;
+   private static final double FIXED_SPACING = 4e-15;    // Absolute point spacing
+   private static final int    FLOAT_DEPTH = 1 << 24;    // Largest depth floats count to
+
+   private static final int RENDER_PASS = 0;
+   private static final int RECOLOR_PASS = 1;
+   private static final int VALIDATE_PASS = 2;
+   private static final int GLITCH_PASS = 3;
+   private static final int CACHE_PASS = 4;
+   private static final int STORE_PASS = 5;
+
+   private static final int GLITCH_PASSES = 4;   // Passes to correct glitches
+
+   private static final int[] PROGRESSIVE_STEPS = {4, 2, 1};   // Point spacing of passes
+
+   private ForkJoinPool pool;
+   private int          threads;
+   private int          tileSize;
+   private int          tilesAcross;
+   private int          tilesDown;
+   private int          maxDepth;
+   private int          imageWidth;
+   private int          imageHeight;
+   private BigDecimal   ar;            // Top-left, real part
+   private BigDecimal   ai;            // Top-left, imaginary part
+   private BigDecimal   br;            // Bottom-right, real part
+   private BigDecimal   bi;            // Bottom-right, imaginary part
+   private Kernel       kernel = new ScalarKernel();
+   private Kernel       floatKernel;   // Created when first needed
+   private Kernel       doubleKernel;  // Created when first needed
+   private Kernel       fixedKernel = new FixedPointKernel();
+   private Kernel       doubleDoubleKernel = new DoubleDoubleKernel();
+   private PerturbationKernel deepKernel = new PerturbationKernel();
+   private Kernel       frameKernel = kernel;   // Kernel chosen for current view
+   private int          engine = BRUTE_FORCE;
+   private int          pass;          // What to do with each tile
+   private boolean      progressive;   // True if rendering coarse to fine
+   private int          step;          // Point spacing of progressive pass, or 0
+   private int          seedStep;      // Point spacing of pass before engine, or 0
+   private int          glitchPass;    // Number of glitch pass, from 0
+   private MarianiSilver marianiSilver;
+   private BoundaryTracer boundaryTracer;
+   private long         renderTime;    // Nanoseconds taken by last render
+   private IterationBuffer depths;     // Depth of each pixel
+   private int[]        pixels;        // RGB of each pixel, row by row
+   private int[]        colorMap;      // RGB of each depth
+   private TileListener tileListener;
+   private CancelToken  cancelToken = new CancelToken();   // Token of current render
+   private TileCache    tileCache;
+   private TileCache.Key cacheKey;    // Key of top-left tile, if the view lines up
+   private boolean[]    cached;       // True for each tile copied from the cache
+   private LongAdder    cachedTiles = new LongAdder();   // Tiles copied from the cache
+   private LongAdder    calculated = new LongAdder();
+   private boolean      floats = true;        // True if shallow views use floats
+   private boolean      periodicity = true;   // True if checking for cycles
+   private boolean      series = true;        // Perturbation settings, for caching
+   private boolean      bilinear = true;
+   private boolean      rebase = true;
+   private double       periodTolerance = 0.0;
+
+   //------------------------------------------------------------------------------------
+   // Constructors
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Create a renderer with the given number of worker threads (0 means one per
+    * processor) and the given tile size in pixels.
+    */
+   public TileRenderer(int threads, int tileSize) {
+      if (threads <= 0) {
+         threads = Runtime.getRuntime().availableProcessors();
+      }
+
+      this.threads = threads;
+      this.tileSize = Math.max(tileSize, 1);
+
+      if (threads > 1) {
+         pool = new ForkJoinPool(threads);
+      }
+   }
+
+   //------------------------------------------------------------------------------------
+   // Tile listener
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Listener that is told when a tile has been rendered. It may be called from any
+    * of the worker threads.
+    */
+   public interface TileListener {
+      public void tileRendered(int left, int top, int width, int height);
+   }
+
+   public void setTileListener(TileListener tileListener) {
+      this.tileListener = tileListener;
+   }
+
+   //------------------------------------------------------------------------------------
+   // Cancel token
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Token for cancelling a render from another thread. Each render should be given
+    * a new one, since a token can't be reset.
+    */
+   public static class CancelToken {
+      private volatile boolean cancelled;
+
+      public void cancel() {
+         cancelled = true;
+      }
+
+      public boolean isCancelled() {
+         return cancelled;
+      }
+   }
+
+   //------------------------------------------------------------------------------------
+   // Parameters
+   //------------------------------------------------------------------------------------
+
+   public int getThreads() {
+      return threads;
+   }
+
+   public int getTileSize() {
+      return tileSize;
+   }
+
+   /**
+    * Get the number of points found inside the main cardioid during the last render.
+    */
+   public long getCardioidSkips() {
+      return frameKernel.getCardioidSkips();
+   }
+
+   /**
+    * Get the number of points found inside the period-2 bulb during the last render.
+    */
+   public long getBulbSkips() {
+      return frameKernel.getBulbSkips();
+   }
+
+   /**
+    * Get the number of points found to be in a cycle during the last render.
+    */
+   public long getPeriodSkips() {
+      return frameKernel.getPeriodSkips();
+   }
+
+   /**
+    * Get the number of points calculated (not filled) during the last render.
+    */
+   public long getCalculated() {
+      return calculated.sum();
+   }
+
+   /**
+    * Get the number of tiles copied from the tile cache during the last render.
+    */
+   public long getCachedTiles() {
+      return cachedTiles.sum();
+   }
+
+   /**
+    * Get the number of points that glitched during the last render.
+    */
+   public long getGlitches() {
+      if (frameKernel instanceof PerturbationKernel) {
+         return ((PerturbationKernel) frameKernel).getGlitches();
+      }
+
+      return 0;
+   }
+
+   /**
+    * Get the number of points still glitched after the last render.
+    */
+   public long getGlitchesLeft() {
+      if (frameKernel instanceof PerturbationKernel) {
+         return ((PerturbationKernel) frameKernel).getGlitchesLeft();
+      }
+
+      return 0;
+   }
+
+   /**
+    * Get the time taken by the last render, in milliseconds.
+    */
+   public long getRenderTime() {
+      return renderTime / 1000000;
+   }
+
+   /**
+    * Turn periodicity (cycle) checking on or off.
+    */
+   public void setPeriodicity(boolean periodicity) {
+      this.periodicity = periodicity;
+   }
+
+   public boolean getPeriodicity() {
+      return periodicity;
+   }
+
+   /**
+    * Set how close an orbit must come to the saved orbit point to be taken as a cycle.
+    */
+   public void setPeriodTolerance(double periodTolerance) {
+      this.periodTolerance = periodTolerance;
+   }
+
+   /**
+    * Set the kernel that calculates the depths.
+    */
+   public void setKernel(Kernel kernel) {
+      this.kernel = kernel;
+      this.frameKernel = kernel;
+   }
+
+   public Kernel getKernel() {
+      return kernel;
+   }
+
+   /**
+    * Get the kernel chosen for the last render.
+    */
+   public Kernel getFrameKernel() {
+      return frameKernel;
+   }
+
+   /**
+    * Turn rendering shallow views in floats on or off.
+    */
+   public void setFloats(boolean floats) {
+      this.floats = floats;
+   }
+
+   /**
+    * Turn series approximation in the perturbation kernel on or off.
+    */
+   public void setSeries(boolean series) {
+      this.series = series;
+      deepKernel.setSeries(series);
+
+      if (kernel instanceof PerturbationKernel) {
+         ((PerturbationKernel) kernel).setSeries(series);
+      }
+   }
+
+   /**
+    * Turn bilinear approximation in the perturbation kernel on or off.
+    */
+   public void setBilinear(boolean bilinear) {
+      this.bilinear = bilinear;
+      deepKernel.setBilinear(bilinear);
+
+      if (kernel instanceof PerturbationKernel) {
+         ((PerturbationKernel) kernel).setBilinear(bilinear);
+      }
+   }
+
+   /**
+    * Turn rebasing in the perturbation kernel on or off.
+    */
+   public void setRebase(boolean rebase) {
+      this.rebase = rebase;
+      deepKernel.setRebase(rebase);
+
+      if (kernel instanceof PerturbationKernel) {
+         ((PerturbationKernel) kernel).setRebase(rebase);
+      }
+   }
+
+   /**
+    * Fix the reference point of the perturbation kernel for every view from now on,
+    * or set null to use the center of each view (see PerturbationKernel.setReference).
+    */
+   public void setReference(BigDecimal cr, BigDecimal ci) {
+      deepKernel.setReference(cr, ci);
+
+      if (kernel instanceof PerturbationKernel) {
+         ((PerturbationKernel) kernel).setReference(cr, ci);
+      }
+   }
+
+   /**
+    * Set the tile cache, or null for none.
+    */
+   public void setTileCache(TileCache tileCache) {
+      this.tileCache = tileCache;
+   }
+
+   public TileCache getTileCache() {
+      return tileCache;
+   }
+
+   /**
+    * Turn progressive (coarse to fine) rendering on or off.
+    */
+   public void setProgressive(boolean progressive) {
+      this.progressive = progressive;
+   }
+
+   public boolean getProgressive() {
+      return progressive;
+   }
+
+   /**
+    * Set the rendering engine: BRUTE_FORCE, MARIANI_SILVER, or BOUNDARY_TRACE.
+    */
+   public void setEngine(int engine) {
+      this.engine = engine;
+   }
+
+   public int getEngine() {
+      return engine;
+   }
+
+   public void setMaxDepth(int maxDepth) {
+      this.maxDepth = maxDepth;
+   }
+
+   public void setImageSize(int imageWidth, int imageHeight) {
+      this.imageWidth = imageWidth;
+      this.imageHeight = imageHeight;
+   }
+
+   /**
+    * Set the bounds of the plot: top-left (ar, ai) and bottom-right (br, bi).
+    */
+   public void setBounds(double ar, double ai, double br, double bi) {
+      setBounds(new BigDecimal(ar), new BigDecimal(ai), new BigDecimal(br), new BigDecimal(bi));
+   }
+
+   /**
+    * Set the bounds of the plot precisely: top-left (ar, ai) and bottom-right (br,
+    * bi).
+    */
+   public void setBounds(BigDecimal ar, BigDecimal ai, BigDecimal br, BigDecimal bi) {
+      this.ar = ar;
+      this.ai = ai;
+      this.br = br;
+      this.bi = bi;
+   }
+
+   //------------------------------------------------------------------------------------
+   // Rendering
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Render the whole image into the given iteration buffer, which must fit the image
+    * size and maximum depth, and color it into the given array of RGB pixels
+    * (imageWidth * imageHeight, row by row) from the given color map.
+    */
+   public void render(IterationBuffer depths, int[] pixels, int[] colorMap) {
+      render(depths, pixels, colorMap, new CancelToken());
+   }
+
+   /**
+    * Render the whole image, as above, until the given token is cancelled.
+    */
+   public void render(
+      IterationBuffer depths, int[] pixels, int[] colorMap, CancelToken cancelToken)
+   {
+      this.cancelToken = cancelToken;
+      pass = RENDER_PASS;
+      frameKernel = chooseKernel();
+
+      if (frameKernel instanceof PerturbationKernel) {
+         ((PerturbationKernel) frameKernel).setCancelToken(cancelToken);
+      }
+
+      frameKernel.setView(ar, ai, br, bi, imageWidth, imageHeight, maxDepth);
+      frameKernel.setPeriodicity(periodicity, periodTolerance);
+      frameKernel.resetCounts();
+      calculated.reset();
+      renderTime = System.nanoTime();
+
+      cacheKey = (tileCache == null ? null : TileCache.align(
+         ar, ai, br, bi, imageWidth, imageHeight, tileSize, maxDepth, kernelTag()));
+      cached = null;
+      cachedTiles.reset();
+
+      if (engine == MARIANI_SILVER) {
+         marianiSilver = new MarianiSilver(this, depths);
+      } else if (engine == BOUNDARY_TRACE) {
+         boundaryTracer = new BoundaryTracer(this, depths);
+      }
+
+      try {
+         if (cacheKey != null) {
+            pass = CACHE_PASS;
+            cached = new boolean[((imageWidth + tileSize - 1) / tileSize)
+               * ((imageHeight + tileSize - 1) / tileSize)];
+            runTiles(depths, pixels, colorMap);
+            pass = RENDER_PASS;
+         }
+
+         if (progressive) {
+            for (int s = 0; s < PROGRESSIVE_STEPS.length && ! isCancelled(); s ++) {
+               step = PROGRESSIVE_STEPS[s];
+               seedStep = (s > 0 ? PROGRESSIVE_STEPS[s - 1] : 0);
+               runTiles(depths, pixels, colorMap);
+            }
+         } else {
+            runTiles(depths, pixels, colorMap);
+         }
+
+         correctGlitches(depths, pixels, colorMap);
+
+         if (cacheKey != null && ! isCancelled()) {
+            pass = STORE_PASS;
+            runTiles(depths, pixels, colorMap);
+         }
+      } finally {
+         step = 0;
+         seedStep = 0;
+         cached = null;
+         marianiSilver = null;
+         boundaryTracer = null;
+         renderTime = System.nanoTime() - renderTime;
+      }
+   }
+
+   /**
+    * Return true if the last render was cancelled before it finished.
+    */
+   public boolean isCancelled() {
+      return cancelToken.isCancelled();
+   }
+
+   /**
+    * Color the given iteration buffer into the given array of RGB pixels from the
+    * given color map, without recalculating any depths.
+    */
+   public void recolor(IterationBuffer depths, int[] pixels, int[] colorMap) {
+      cancelToken = new CancelToken();
+      pass = RECOLOR_PASS;
+      setImageSize(depths.getWidth(), depths.getHeight());
+      runTiles(depths, pixels, colorMap);
+   }
+
+   /**
+    * Calculate every point of the given iteration buffer by brute force, with the
+    * current bounds, and return the number of points whose depth differs from the
+    * buffer. The buffer is not changed.
+    */
+   public long validate(IterationBuffer depths) {
+      IterationBuffer expected =
+         IterationBuffer.create(imageWidth, imageHeight, depths.getMaxDepth());
+      long            count = 0;
+
+      pass = VALIDATE_PASS;
+      frameKernel = chooseKernel();
+
+      if (frameKernel instanceof PerturbationKernel) {
+         ((PerturbationKernel) frameKernel).setCancelToken(cancelToken);
+      }
+
+      frameKernel.setView(ar, ai, br, bi, imageWidth, imageHeight, maxDepth);
+      frameKernel.resetCounts();
+      runTiles(expected, null, null);
+      correctGlitches(expected, null, null);
+
+      for (int i = 0; i < imageWidth * imageHeight; i ++) {
+         if (depths.get(i) != expected.get(i)) {
+            count ++;
+         }
+      }
+
+      return count;
+   }
+
+   /**
+    * Correct the points that glitched in the perturbation kernel, if it was used, and
+    * color the tiles they are in (unless pixels is null).
+    */
+   private void correctGlitches(IterationBuffer depths, int[] pixels, int[] colorMap) {
+      if (! (frameKernel instanceof PerturbationKernel)) {
+         return;
+      }
+
+      PerturbationKernel deep = (PerturbationKernel) frameKernel;
+
+      for (int p = 0; p < GLITCH_PASSES && deep.getGlitchesLeft() > 0 && ! isCancelled(); p ++) {
+         pass = GLITCH_PASS;
+         glitchPass = p;
+         runTiles(depths, pixels, colorMap);
+      }
+   }
+
+   /**
+    * Choose the kernel for the current view: the kernel that was set, unless the
+    * points are too close together for it.
+    */
+   private Kernel chooseKernel() {
+      double scale = Math.max(
+         Math.max(Math.abs(ar.doubleValue()), Math.abs(br.doubleValue())),
+         Math.max(Math.abs(ai.doubleValue()), Math.abs(bi.doubleValue())));
+      double spacing = Math.max(
+         Math.abs(br.subtract(ar).doubleValue()) / imageWidth,
+         Math.abs(bi.subtract(ai).doubleValue()) / imageHeight);
+
+      boolean fixed = spacing >= FIXED_SPACING && FixedPointKernel.fits(ar, ai, br, bi);
+
+      if (spacing < scale * DEEP_SPACING) {
+         return deepKernel;
+      }
+
+      if (kernel instanceof FixedPointKernel) {
+         return (fixed ? kernel : doubleDoubleKernel);
+      }
+
+      if (floats && spacing > scale * FLOAT_SPACING && maxDepth <= FLOAT_DEPTH
+         && kernel instanceof ScalarKernel)
+      {
+         if (floatKernel == null) {
+            floatKernel = Kernel.create("float");
+         }
+
+         return floatKernel;
+      }
+
+      if (spacing < scale * DOUBLE_SPACING
+         && ! (kernel instanceof DoubleDoubleKernel || kernel instanceof PerturbationKernel))
+      {
+         return (fixed ? fixedKernel : doubleDoubleKernel);
+      }
+
+      if (kernel instanceof FloatKernel && maxDepth > FLOAT_DEPTH) {
+         if (doubleKernel == null) {
+            doubleKernel = Kernel.create("auto");
+         }
+
+         return doubleKernel;
+      }
+
+      return kernel;
+   }
+
+   /**
+    * Return the name of the kernel chosen for the current view, with the engine and
+    * the settings that its depths depend on, to cache tiles under. The Mariani-Silver
+    * and boundary tracing engines can differ from brute force in a few points, so
+    * their tiles are kept apart.
+    */
+   private String kernelTag() {
+      StringBuffer tag = new StringBuffer(frameKernel.getName());
+
+      tag.append(",engine=").append(ENGINE_NAMES[engine]);
+
+      if (periodicity) {
+         tag.append(",period=").append(periodTolerance);
+      }
+
+      if (frameKernel instanceof PerturbationKernel) {
+         tag.append(",series=").append(series);
+         tag.append(",bilinear=").append(bilinear);
+         tag.append(",rebase=").append(rebase);
+      }
+
+      return tag.toString();
+   }
+
+   /**
+    * Run every tile, either in order on this thread or on the pool.
+    */
+   private void runTiles(IterationBuffer depths, int[] pixels, int[] colorMap) {
+      this.depths = depths;
+      this.pixels = pixels;
+      this.colorMap = colorMap;
+      tilesAcross = (imageWidth + tileSize - 1) / tileSize;
+      tilesDown = (imageHeight + tileSize - 1) / tileSize;
+
+      try {
+         if (pool == null) {
+            for (int t = 0; t < tilesAcross * tilesDown; t ++) {
+               renderTile(t);
+            }
+         } else {
+            pool.invoke(new TileTask(0, tilesAcross * tilesDown));
+         }
+      } finally {
+         this.depths = null;
+         this.pixels = null;
+         this.colorMap = null;
+      }
+   }
+
+   /**
+    * Render the tile with the given index. Tiles are numbered row by row.
+    */
+   private void renderTile(int t) {
+      int left = (t % tilesAcross) * tileSize;
+      int top = (t / tilesAcross) * tileSize;
+      int right = Math.min(left + tileSize, imageWidth);
+      int bottom = Math.min(top + tileSize, imageHeight);
+
+      if (isCancelled()) {
+         return;
+      }
+
+      if (pass == CACHE_PASS || pass == STORE_PASS) {
+         if (! cacheTile(t, left, top, right, bottom) || pass == STORE_PASS) {
+            return;
+         }
+      } else if (cached != null && cached[t]) {
+         return;
+      }
+
+      if (pass == VALIDATE_PASS) {
+         validateTile(left, top, right, bottom);
+         return;
+      }
+
+      if (pass == GLITCH_PASS) {
+         if (! correctTile(left, top, right, bottom) || pixels == null) {
+            return;
+         }
+      }
+
+      if (pass == RENDER_PASS) {
+         if (step > 1 || (step == 1 && engine == BRUTE_FORCE)) {
+            progressiveTile(left, top, right, bottom);
+         } else if (engine == MARIANI_SILVER) {
+            marianiSilver.renderTile(left, top, right, bottom);
+         } else if (engine == BOUNDARY_TRACE) {
+            boundaryTracer.renderTile(left, top, right, bottom);
+         } else {
+            bruteForceTile(left, top, right, bottom);
+         }
+
+         if (isCancelled()) {
+            return;
+         }
+      }
+
+      colorTile(left, top, right, bottom);
+
+      if (tileListener != null) {
+         tileListener.tileRendered(left, top, right - left, bottom - top);
+      }
+   }
+
+   /**
+    * Copy the given tile from the tile cache (on the cache pass) or put it in the
+    * cache (on the store pass), if it is a full tile. Returns true if it was copied.
+    */
+   private boolean cacheTile(int t, int left, int top, int right, int bottom) {
+      if (right - left != tileSize || bottom - top != tileSize) {
+         return false;
+      }
+
+      TileCache.Key key = cacheKey.offset(t % tilesAcross, t / tilesAcross);
+
+      if (pass == STORE_PASS) {
+         if (! cached[t]) {
+            IterationBuffer tile = IterationBuffer.create(tileSize, tileSize, maxDepth);
+
+            for (int y = top, j = 0; y < bottom; y ++) {
+               for (int x = left, i = (y * imageWidth) + left; x < right; x ++) {
+                  tile.set(j ++, depths.get(i ++));
+               }
+            }
+
+            tileCache.put(key, tile);
+         }
+
+         return false;
+      }
+
+      IterationBuffer tile = tileCache.get(key);
+
+      if (tile == null || ! tile.fits(tileSize, tileSize, maxDepth)) {
+         return false;
+      }
+
+      for (int y = top, j = 0; y < bottom; y ++) {
+         for (int x = left, i = (y * imageWidth) + left; x < right; x ++) {
+            depths.set(i ++, tile.get(j ++));
+         }
+      }
+
+      cached[t] = true;
+      cachedTiles.increment();
+      return true;
+   }
+
+   /**
+    * Calculate every point in the given area.
+    */
+   private void bruteForceTile(int left, int top, int right, int bottom) {
+      for (int y = top; y < bottom && ! isCancelled(); y ++) {
+         frameKernel.row(y, left, right, depths);
+         calculated.add(right - left);
+      }
+   }
+
+   /**
+    * Calculate the points of the given area for the current progressive pass: those
+    * whose distance from the top-left corner is a multiple of the step in both
+    * directions, and not of the step of the pass before. They are calculated a row at
+    * a time, so kernels that do several points at once can, and then each one is
+    * copied over the step x step block below and to the right of it.
+    */
+   private void progressiveTile(int left, int top, int right, int bottom) {
+      int     coarse = step * 2;   // Step of the pass before
+      boolean first = (step == PROGRESSIVE_STEPS[0]);
+      int     count = 0;
+
+      for (int y = top; y < bottom && ! isCancelled(); y += step) {
+         // Rows of the pass before have only every other point left to do.
+
+         boolean done = ! first && (y - top) % coarse == 0;
+         int     x0 = (done ? left + step : left);
+         int     dx = (done ? coarse : step);
+
+         frameKernel.row(y, x0, right, dx, depths);
+         count += (right - x0 + dx - 1) / dx;
+
+         if (step > 1) {
+            for (int x = x0, i = (y * imageWidth) + x0; x < right; x += dx, i += dx) {
+               fill(x, y, Math.min(x + step, right), Math.min(y + step, bottom),
+                  depths.get(i));
+            }
+         }
+      }
+
+      calculated.add(count);
+   }
+
+   /**
+    * Set every point from (left, top) to (right, bottom), exclusive, to the given
+    * depth.
+    */
+   private void fill(int left, int top, int right, int bottom, int d) {
+      for (int y = top; y < bottom; y ++) {
+         int i = (y * imageWidth) + left;
+
+         for (int x = left; x < right; x ++) {
+            depths.set(i ++, d);
+         }
+      }
+   }
+
+   /**
+    * Calculate every point in the given area, one at a time, into the iteration
+    * buffer, without counting them.
+    */
+   private void validateTile(int left, int top, int right, int bottom) {
+      for (int y = top; y < bottom && ! isCancelled(); y ++) {
+         int i = (y * imageWidth) + left;
+
+         for (int x = left; x < right; x ++) {
+            depths.set(i ++, frameKernel.depth(x, y));
+         }
+      }
+   }
+
+   /**
+    * Correct the glitched points in the given area. The first glitch pass corrects
+    * them as one batch; each pass after that cuts the area across and down into
+    * twice as many parts as the pass before, and corrects each part as a batch, so
+    * each gets a different reference. Returns false if there were none.
+    */
+   private boolean correctTile(int left, int top, int right, int bottom) {
+      PerturbationKernel deep = (PerturbationKernel) frameKernel;
+      int[]              xs = new int[(right - left) * (bottom - top)];
+      int[]              ys = new int[xs.length];
+      int                parts = 1 << glitchPass;   // Across and down
+      boolean            found = false;
+
+      for (int py = 0; py < parts; py ++) {
+         for (int px = 0; px < parts; px ++) {
+            int x0 = left + (((right - left) * px) / parts);
+            int x1 = left + (((right - left) * (px + 1)) / parts);
+            int y0 = top + (((bottom - top) * py) / parts);
+            int y1 = top + (((bottom - top) * (py + 1)) / parts);
+            int count = 0;
+
+            for (int y = y0; y < y1; y ++) {
+               for (int x = x0; x < x1; x ++) {
+                  if (deep.isGlitched(x, y)) {
+                     xs[count] = x;
+                     ys[count] = y;
+                     count ++;
+                  }
+               }
+            }
+
+            if (count > 0) {
+               deep.correct(xs, ys, count, depths);
+               calculated.add(count);
+               found = true;
+            }
+         }
+      }
+
+      return found;
+   }
+
+   /**
+    * Calculate the depth of the point at the given cartesian coordinates. On the last
+    * progressive pass, points the pass before calculated are taken from the
+    * iteration buffer instead.
+    */
+   int depthAt(int x, int y) {
+      if (seedStep > 0 && (x % tileSize) % seedStep == 0 && (y % tileSize) % seedStep == 0) {
+         return depths.get((y * imageWidth) + x);
+      }
+
+      calculated.increment();
+      return frameKernel.depth(x, y);
+   }
+
+   /**
+    * Return true if tiles are being rendered on the pool, so they may fork subtasks.
+    */
+   boolean isParallel() {
+      return pool != null;
+   }
+
+   /**
+    * Color the given area from the iteration buffer. If the depth was not infinity
+    * (greater than max. depth), determine the color from the color map. Otherwise,
+    * use black.
+    */
+   private void colorTile(int left, int top, int right, int bottom) {
+      int depthLimit = depths.getMaxDepth();
+
+      for (int y = top; y < bottom; y ++) {
+         int i = (y * imageWidth) + left;
+
+         for (int x = left; x < right; x ++, i ++) {
+            int d = depths.get(i);
+            pixels[i] = (d > depthLimit ? 0 : colorMap[d % colorMap.length]);
+         }
+      }
+   }
+
+   /**
+    * Task that renders a range of tiles, splitting it in half until one tile is left.
+    */
+   private class TileTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private int first;
+      private int last;   // exclusive
+
+      TileTask(int first, int last) {
+         this.first = first;
+         this.last = last;
+      }
+
+      protected void compute() {
+         if (last - first <= 1) {
+            if (last > first) {
+               renderTile(first);
+            }
+         } else {
+            int middle = (first + last) >>> 1;
+            invokeAll(new TileTask(first, middle), new TileTask(middle, last));
+         }
+      }
+   }
+}
@@ -0,0 +1,289 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.math.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * <p>Serves the set as map tiles over HTTP, for browsing in a web map viewer (such as
+ * Leaflet or OpenLayers, with http://localhost:8080/{z}/{x}/{y}.png as the tile
+ * URL). Runs headless, on the JDK's built-in HTTP server, and only answers requests
+ * from the same machine.</p>
+ *
+ * <p>Usage: java TileServer [port]</p>
+ *
+ * <p>Tiles are TILE_SIZE pixels square and addressed as in slippy maps: /z/x/y.png is
+ * tile x across and y down of the 2^z x 2^z tiles at zoom level z, which split the
+ * square with top-left corner (ORIGIN_R, ORIGIN_I) and sides of SIDE into four, and
+ * each of those into four, and so on, down to MAX_ZOOM. The square and zoom levels
+ * are chosen so that every tile from zoom level 2 on lines up with the grid of the
+ * tile cache (see TileCache), so tiles served once are put together from the cache,
+ * in memory or on disk, afterwards. The maximum depth can be given as ?depth=n, up
+ * to maxtiledepth from the properties; otherwise it is maxdepth.</p>
+ *
+ * <p>Tiles are rendered on a pool with one thread per processor (or threads from the
+ * properties), each with its own renderer, and at most QUEUE tiles waiting; the
+ * server answers 503 when the queue is full. Requests for a tile that is already
+ * being rendered wait for that render instead of starting another. Requests are
+ * answered from the render threads when their tiles are done, so waiting requests
+ * don't hold any threads. The other settings are read from MandelThing.properties,
+ * as for MandelBatch.</p>
+ */
+public class TileServer {
+   public static final int        TILE_SIZE = 256;
+   public static final BigDecimal ORIGIN_R =
+      TileCache.ORIGIN_R.subtract(new BigDecimal("1.6"));
+   public static final BigDecimal ORIGIN_I =
+      TileCache.ORIGIN_I.add(new BigDecimal("1.6"));
+   public static final BigDecimal SIDE =
+      TileCache.spacing(-2).multiply(BigDecimal.valueOf(TILE_SIZE));
+
+   private static final int ZOOM_OFFSET = -2;     // Zoom level of tile cache at level 0
+   private static final int MAX_ZOOM = 1000;
+   private static final int QUEUE = 256;          // Tiles waiting to be rendered
+
+   private Properties                  props;
+   private int                         maxDepth;
+   private int                         depthLimit;   // Largest depth asked for
+   private int[]                       colorMap;
+   private TileCache                   tileCache;
+   private ThreadPoolExecutor          pool;
+   private ExecutorService             requests;     // Runs the request handlers
+   private ThreadLocal<TileRenderer>   renderers;
+   private ConcurrentHashMap<String, CompletableFuture<byte[]>> rendering =
+      new ConcurrentHashMap<String, CompletableFuture<byte[]>>();   // Tiles in flight
+   private HttpServer                  server;
+
+   //------------------------------------------------------------------------------------
+   // Constructors
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Create a server on the given port, with its settings from the properties.
+    */
+   public TileServer(int port) throws IOException {
+      props = MandelBatch.loadProperties();
+      maxDepth = MandelBatch.getInt(props, "maxdepth", 256);
+      depthLimit = Math.max(MandelBatch.getInt(props, "maxtiledepth", 100000), maxDepth);
+      colorMap = ColorMap.create(props.getProperty("colors", "blue").trim());
+      tileCache = new TileCache((long) MandelBatch.getInt(props, "tilecache", 64) << 20);
+
+      String diskCache = props.getProperty("diskcache", "").trim();
+
+      if (diskCache.length() > 0) {
+         tileCache.setDiskCache(new DiskTileCache(
+            new File(diskCache), (long) MandelBatch.getInt(props, "diskcachesize", 256) << 20));
+      }
+
+      // Each render thread has its own single-threaded renderer, sharing the cache.
+
+      int threads = MandelBatch.getInt(props, "threads", 0);
+
+      if (threads <= 0) {
+         threads = Runtime.getRuntime().availableProcessors();
+      }
+
+      pool = new ThreadPoolExecutor(
+         threads, threads, 0L, TimeUnit.MILLISECONDS,
+         new ArrayBlockingQueue<Runnable>(QUEUE));
+      renderers = new ThreadLocal<TileRenderer>() {
+         protected TileRenderer initialValue() {
+            TileRenderer renderer = MandelBatch.createRenderer(props, 1);
+
+            renderer.setTileCache(tileCache);
+            return renderer;
+         }
+      };
+
+      server = HttpServer.create(
+         new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      server.createContext("/", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            serve(exchange);
+         }
+      });
+      requests = Executors.newFixedThreadPool(threads);
+      server.setExecutor(requests);
+   }
+
+   public void start() {
+      server.start();
+   }
+
+   public void stop() {
+      server.stop(0);
+      requests.shutdownNow();
+      pool.shutdownNow();
+   }
+
+   //------------------------------------------------------------------------------------
+   // Serving
+   //------------------------------------------------------------------------------------
+
+   /**
+    * Answer a request: find the tile, start rendering it unless it is already being
+    * rendered, and send it when it is done.
+    */
+   private void serve(final HttpExchange exchange) throws IOException {
+      String[] path = exchange.getRequestURI().getPath().split("/");
+      int        zoom;
+      BigInteger x;
+      BigInteger y;
+      int        depth = maxDepth;
+
+      try {
+         if (path.length != 4 || ! path[3].endsWith(".png")) {
+            throw new NumberFormatException();
+         }
+
+         zoom = Integer.parseInt(path[1]);
+         x = new BigInteger(path[2]);
+         y = new BigInteger(path[3].substring(0, path[3].length() - 4));
+
+         String query = exchange.getRequestURI().getQuery();
+
+         if (query != null && query.startsWith("depth=")) {
+            depth = Integer.parseInt(query.substring(6));
+         }
+      } catch(NumberFormatException ex) {
+         send(exchange, 404, "Not found.");
+         return;
+      }
+
+      if (zoom < 0 || zoom > MAX_ZOOM || depth < 2 || depth > depthLimit
+         || x.signum() < 0 || y.signum() < 0
+         || x.bitLength() > zoom || y.bitLength() > zoom)
+      {
+         send(exchange, 404, "No such tile.");
+         return;
+      }
+
+      CompletableFuture<byte[]> png;
+
+      try {
+         png = submit(zoom, x, y, depth);
+      } catch(RejectedExecutionException ex) {
+         send(exchange, 503, "Busy.");
+         return;
+      }
+
+      png.whenComplete(new BiConsumer<byte[], Throwable>() {
+         public void accept(byte[] bytes, Throwable ex) {
+            try {
+               if (ex != null) {
+                  send(exchange, 500, ex.toString());
+               } else {
+                  exchange.getResponseHeaders().set("Content-Type", "image/png");
+                  exchange.getResponseHeaders().set("Cache-Control", "max-age=86400");
+                  exchange.sendResponseHeaders(200, bytes.length);
+                  exchange.getResponseBody().write(bytes);
+                  exchange.close();
+               }
+            } catch(IOException ioex) {
+               exchange.close();
+            }
+         }
+      });
+   }
+
+   /**
+    * Return the PNG of the given tile: the one being rendered, if any, or else one
+    * rendered on the pool.
+    */
+   private CompletableFuture<byte[]> submit(
+      final int zoom, final BigInteger x, final BigInteger y, final int depth)
+   {
+      final String                    key = zoom + "/" + x + "/" + y + "/" + depth;
+      final CompletableFuture<byte[]> png = new CompletableFuture<byte[]>();
+      CompletableFuture<byte[]>       old = rendering.putIfAbsent(key, png);
+
+      if (old != null) {
+         return old;
+      }
+
+      try {
+         pool.execute(new Runnable() {
+            public void run() {
+               try {
+                  png.complete(render(zoom, x, y, depth));
+               } catch(Throwable ex) {
+                  png.completeExceptionally(ex);
+               } finally {
+                  rendering.remove(key);
+               }
+            }
+         });
+      } catch(RejectedExecutionException ex) {
+         rendering.remove(key);
+         png.completeExceptionally(ex);
+         throw ex;
+      }
+
+      return png;
+   }
+
+   /**
+    * Render the given tile on this thread's renderer and encode it as a PNG.
+    */
+   private byte[] render(int zoom, BigInteger x, BigInteger y, int depth)
+      throws IOException
+   {
+      TileRenderer    renderer = renderers.get();
+      BigDecimal      side = TileCache.spacing(zoom + ZOOM_OFFSET)
+         .multiply(BigDecimal.valueOf(TILE_SIZE));
+      BigDecimal      ar = ORIGIN_R.add(side.multiply(new BigDecimal(x)));
+      BigDecimal      ai = ORIGIN_I.subtract(side.multiply(new BigDecimal(y)));
+      IterationBuffer depths = IterationBuffer.create(TILE_SIZE, TILE_SIZE, depth);
+      int[]           pixels = new int[TILE_SIZE * TILE_SIZE];
+
+      renderer.setMaxDepth(depth);
+      renderer.setImageSize(TILE_SIZE, TILE_SIZE);
+      renderer.setBounds(ar, ai, ar.add(side), ai.subtract(side));
+      renderer.render(depths, pixels, colorMap);
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      PngWriter             png = new PngWriter(bytes, TILE_SIZE, TILE_SIZE);
+
+      for (int row = 0; row < TILE_SIZE; row ++) {
+         png.writeRow(pixels, row * TILE_SIZE);
+      }
+
+      png.close();
+      return bytes.toByteArray();
+   }
+
+   /**
+    * Send the given status and message as plain text.
+    */
+   private static void send(HttpExchange exchange, int status, String message)
+      throws IOException
+   {
+      byte[] bytes = message.getBytes("UTF-8");
+
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      exchange.getResponseBody().write(bytes);
+      exchange.close();
+   }
+
+   //------------------------------------------------------------------------------------
+   // Main
+   //------------------------------------------------------------------------------------
+
+   public static void main(String args[]) {
+      System.setProperty("java.awt.headless", "true");
+
+      try {
+         int        port = (args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+         TileServer server = new TileServer(port);
+
+         server.start();
+         System.out.println("Serving tiles on http://localhost:" + port + "/{z}/{x}/{y}.png");
+      } catch(Exception ex) {
+         System.out.println(ex);
+         System.exit(1);
+      }
+   }
+}
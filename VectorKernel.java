@@ -0,0 +1,164 @@
+import jdk.incubator.vector.*;
+
+/**
+ * <p>Escape-time kernel on the JDK Vector API. A row is calculated a whole vector of
+ * points at a time (one point per lane), and each lane is masked off as its point
+ * escapes. The loop stops when every lane has escaped or the maximum depth is
+ * reached.</p>
+ *
+ * <p>Each lane does exactly the same multiplies, adds, and compares as the scalar
+ * loop (no fused multiply-add), so the depths are the same as the scalar kernel's.
+ * Single points, as asked for by the Mariani-Silver and boundary tracing engines, are
+ * calculated by the scalar loop.</p>
+ *
+ * <p>Periodicity checking works as in the scalar loop (see ScalarKernel). Every lane
+ * starts at the same time, so the saved orbit points of all the lanes are moved
+ * forward together, as a vector; lanes that come back to their saved point are
+ * masked off with the maximum depth.</p>
+ *
+ * <p>Needs the jdk.incubator.vector module (--add-modules jdk.incubator.vector) at
+ * both compile time and run time.</p>
+ */
+public class VectorKernel extends ScalarKernel {
+   private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+   public String getName() {
+      return "vector";
+   }
+
+   /**
+    * Return true if the hardware has vectors of more than one double.
+    */
+   public boolean isAccelerated() {
+      return SPECIES.length() > 1;
+   }
+
+   /**
+    * Calculate the depths of every step'th point of a row, a vector of points at a
+    * time.
+    */
+   public void row(int y, int left, int right, int step, IterationBuffer depths) {
+      int       lanes = SPECIES.length();
+      int       points = (right - left + step - 1) / step;
+      double    ci = imaginaryPart(y);
+      double[]  crs = new double[lanes];
+      double[]  counts = new double[lanes];
+      boolean[] active = new boolean[lanes];
+      int       i = (y * imageWidth) + left;
+
+      for (int p = 0; p < points; p += lanes) {
+         int n = Math.min(lanes, points - p);
+         int x = left + (p * step);
+
+         // Set up the lanes. Lanes past the end of the row, and points known to be
+         // in the set, are inactive from the start.
+
+         for (int k = 0; k < lanes; k ++) {
+            crs[k] = (k < n ? realPart(x + (k * step)) : 0.0);
+            active[k] = k < n && ! inSet(crs[k], ci);
+         }
+
+         if (periodicity) {
+            iteratePeriodic(crs, ci, active, counts);
+         } else {
+            iterate(crs, ci, active, counts);
+         }
+
+         for (int k = 0; k < n; k ++, i += step) {
+            depths.set(i, (int) counts[k]);
+         }
+      }
+   }
+
+   /**
+    * Iterate the Mandelbrot equation for a vector of points with the given real parts
+    * and imaginary part, and put the depth of each point in counts. Inactive lanes
+    * get the maximum depth.
+    */
+   private void iterate(double[] crs, double ci, boolean[] active, double[] counts) {
+      DoubleVector       cr = DoubleVector.fromArray(SPECIES, crs, 0);
+      DoubleVector       civ = DoubleVector.broadcast(SPECIES, ci);
+      DoubleVector       zr = DoubleVector.zero(SPECIES);
+      DoubleVector       zi = DoubleVector.zero(SPECIES);
+      DoubleVector       zr2;
+      DoubleVector       depth = DoubleVector.broadcast(SPECIES, maxDepth);
+      VectorMask<Double> running = VectorMask.fromArray(SPECIES, active, 0);
+
+      for (int d = 0; d < maxDepth && running.anyTrue(); d ++) {
+         zr2 = zr.mul(zr).sub(zi.mul(zi)).add(cr);
+         zi = zr.mul(2.0).mul(zi).add(civ);
+         zr = zr2;
+
+         // Record the depth of the lanes that escaped on this iteration.
+
+         VectorMask<Double> escaped =
+            zr.mul(zr).add(zi.mul(zi)).compare(VectorOperators.GT, 4.0).and(running);
+
+         depth = depth.blend(d, escaped);
+         running = running.andNot(escaped);
+      }
+
+      depth.intoArray(counts, 0);
+   }
+
+   /**
+    * Iterate as above, checking for cycles as the scalar loop does. Every lane starts
+    * at the same time, so the saved orbit points of all the lanes are moved forward
+    * together.
+    */
+   private void iteratePeriodic(
+      double[] crs, double ci, boolean[] active, double[] counts)
+   {
+      DoubleVector       cr = DoubleVector.fromArray(SPECIES, crs, 0);
+      DoubleVector       civ = DoubleVector.broadcast(SPECIES, ci);
+      DoubleVector       zr = DoubleVector.zero(SPECIES);
+      DoubleVector       zi = DoubleVector.zero(SPECIES);
+      DoubleVector       zr2;
+      DoubleVector       depth = DoubleVector.broadcast(SPECIES, maxDepth);
+      VectorMask<Double> running = VectorMask.fromArray(SPECIES, active, 0);
+      DoubleVector       sr = DoubleVector.zero(SPECIES);   // saved orbit points
+      DoubleVector       si = DoubleVector.zero(SPECIES);
+      int                steps = 0;      // steps since orbit points were saved
+      int                interval = 8;   // steps between saves
+
+      for (int d = 0; d < maxDepth && running.anyTrue(); d ++) {
+         zr2 = zr.mul(zr).sub(zi.mul(zi)).add(cr);
+         zi = zr.mul(2.0).mul(zi).add(civ);
+         zr = zr2;
+
+         VectorMask<Double> escaped =
+            zr.mul(zr).add(zi.mul(zi)).compare(VectorOperators.GT, 4.0).and(running);
+
+         depth = depth.blend(d, escaped);
+         running = running.andNot(escaped);
+
+         // Lanes whose orbits are back at their saved points are in cycles, and keep
+         // the maximum depth.
+
+         VectorMask<Double> cycled = zr.sub(sr).abs().max(zi.sub(si).abs())
+            .compare(VectorOperators.LE, periodTolerance).and(running);
+
+         if (cycled.anyTrue()) {
+            periodSkips.add(cycled.trueCount());
+         }
+
+         running = running.andNot(cycled);
+
+         // Move the saved points forward when the interval is up, doubling it. They
+         // are blended in rather than assigned in the branch, which keeps the vectors
+         // in registers instead of boxed.
+
+         VectorMask<Double> save = SPECIES.maskAll(++ steps == interval);
+
+         sr = sr.blend(zr, save);
+         si = si.blend(zi, save);
+
+         if (steps == interval) {
+            steps = 0;
+            interval <<= 1;
+         }
+      }
+
+      depth.intoArray(counts, 0);
+   }
+}